@@ -0,0 +1,438 @@
+package ika.colororacle;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Filters using the Java Vector API, which process as many pixels at once as
+ * fit in a vector register of the processor. The filters use the same tables
+ * and integer arithmetic as the scalar filters in Simulator and produce
+ * identical results.
+ *
+ * This class requires Java 16 or newer with the jdk.incubator.vector module.
+ * It is only compiled if the JDK provides the module, and is loaded by
+ * VectorSupport with reflection.
+ */
+final class VectorFilters {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    private VectorFilters() {
+    }
+
+    /**
+     * Creates a vector filter for a scalar filter.
+     *
+     * @param filter The scalar filter.
+     * @return The vector filter, or null if there is no vector filter for the
+     * passed filter.
+     */
+    public static SimulationFilter create(SimulationFilter filter) {
+        if (filter instanceof Simulator.RedGreenFilter) {
+            return new RedGreenFilter((Simulator.RedGreenFilter) filter);
+        }
+        if (filter instanceof Simulator.BrettelFilter) {
+            return new BrettelFilter((Simulator.BrettelFilter) filter);
+        }
+        if (filter instanceof Simulator.GrayscaleFilter) {
+            return new GrayscaleFilter((Simulator.GrayscaleFilter) filter);
+        }
+        if (filter instanceof MatrixFilter) {
+            return new MatrixVectorFilter((MatrixFilter) filter);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of pixels in a vector.
+     */
+    public static int getVectorLength() {
+        return SPECIES.length();
+    }
+
+    /**
+     * Converts a table from linear RGB [0..255] to the values of the display
+     * [0..255] to int, such that it can be used for gathering vectors.
+     */
+    private static int[] toIntTable(byte[] table) {
+        final int[] intTable = new int[table.length];
+        for (int i = 0; i < table.length; i++) {
+            intTable[i] = table[i] & 0xff;
+        }
+        return intTable;
+    }
+
+    /**
+     * Converts the tables from linear RGB to the red, green and blue values
+     * of the display. Channels sharing a table share the converted table.
+     */
+    private static int[][] toIntTables(byte[] red, byte[] green, byte[] blue) {
+        final int[] intRed = toIntTable(red);
+        final int[] intGreen = green == red ? intRed : toIntTable(green);
+        final int[] intBlue = blue == red ? intRed : blue == green ? intGreen : toIntTable(blue);
+        return new int[][]{intRed, intGreen, intBlue};
+    }
+
+    /**
+     * Gathers table entries for the indices in an array.
+     */
+    private static IntVector gather(int[] table, int[] indices) {
+        return IntVector.fromArray(SPECIES, table, 0, indices, 0);
+    }
+
+    /**
+     * Vector version of Simulator.RedGreenFilter.
+     */
+    private static final class RedGreenFilter extends SimulationFilter {
+
+        private final Simulator.RedGreenFilter scalar;
+
+        /**
+         * Linear RGB to the red, green and blue values of the display.
+         */
+        private final int[] linearToRed, linearToGreen, linearToBlue;
+
+        RedGreenFilter(Simulator.RedGreenFilter scalar) {
+            this.scalar = scalar;
+            final int[][] tables = toIntTables(scalar.linearToRed,
+                    scalar.linearToGreen, scalar.linearToBlue);
+            linearToRed = tables[0];
+            linearToGreen = tables[1];
+            linearToBlue = tables[2];
+        }
+
+        @Override
+        int filterRGB(int rgb) {
+            return scalar.filterRGB(rgb);
+        }
+
+        @Override
+        long filterRGB48(long rgb) {
+            return scalar.filterRGB48(rgb);
+        }
+
+        @Override
+        void filter(int[] inData, int[] outData, int from, int to) {
+            final int length = SPECIES.length();
+            final int[] r = new int[length];
+            final int[] g = new int[length];
+            final int[] b = new int[length];
+            final int end = from + SPECIES.loopBound(to - from);
+            int i = from;
+            for (; i < end; i += length) {
+                // unpack the channels
+                final IntVector in = IntVector.fromArray(SPECIES, inData, i);
+                in.lanewise(VectorOperators.LSHR, 16).and(0xff).intoArray(r, 0);
+                in.lanewise(VectorOperators.LSHR, 8).and(0xff).intoArray(g, 0);
+                in.and(0xff).intoArray(b, 0);
+
+                // simulated red and green are identical
+                IntVector red = gather(scalar.redFromRed, r)
+                        .add(gather(scalar.redFromGreen, g))
+                        .lanewise(VectorOperators.ASHR, 22)
+                        .max(0).min(255);
+                IntVector blue = gather(scalar.blueFromRed, r)
+                        .add(gather(scalar.blueFromGreen, g))
+                        .add(gather(scalar.blueFromBlue, b))
+                        .lanewise(VectorOperators.ASHR, 22)
+                        .max(0).min(255);
+
+                // convert reduced linear rgb to gamma corrected rgb
+                red.intoArray(r, 0);
+                blue.intoArray(b, 0);
+                red = gather(linearToRed, r);
+                final IntVector green = linearToGreen == linearToRed
+                        ? red : gather(linearToGreen, r);
+                blue = gather(linearToBlue, b);
+
+                red.lanewise(VectorOperators.LSHL, 16)
+                        .or(green.lanewise(VectorOperators.LSHL, 8))
+                        .or(blue)
+                        .or(0xff000000)
+                        .intoArray(outData, i);
+            }
+            super.filter(inData, outData, i, to);
+        }
+    }
+
+    /**
+     * Vector version of Simulator.BrettelFilter.
+     */
+    private static final class BrettelFilter extends SimulationFilter {
+
+        private final Simulator.BrettelFilter scalar;
+
+        /**
+         * Linear RGB to the red, green and blue values of the display.
+         */
+        private final int[] linearToRed, linearToGreen, linearToBlue;
+
+        BrettelFilter(Simulator.BrettelFilter scalar) {
+            this.scalar = scalar;
+            final int[][] tables = toIntTables(scalar.linearToRed,
+                    scalar.linearToGreen, scalar.linearToBlue);
+            linearToRed = tables[0];
+            linearToGreen = tables[1];
+            linearToBlue = tables[2];
+        }
+
+        @Override
+        int filterRGB(int rgb) {
+            return scalar.filterRGB(rgb);
+        }
+
+        @Override
+        long filterRGB48(long rgb) {
+            return scalar.filterRGB48(rgb);
+        }
+
+        @Override
+        void filter(int[] inData, int[] outData, int from, int to) {
+            final int length = SPECIES.length();
+            final int[] r = new int[length];
+            final int[] g = new int[length];
+            final int[] b = new int[length];
+            final int end = from + SPECIES.loopBound(to - from);
+            int i = from;
+            for (; i < end; i += length) {
+                // unpack the channels
+                final IntVector in = IntVector.fromArray(SPECIES, inData, i);
+                final IntVector rv = in.lanewise(VectorOperators.LSHR, 16).and(0xff);
+                final IntVector gv = in.lanewise(VectorOperators.LSHR, 8).and(0xff);
+                final IntVector bv = in.and(0xff);
+                rv.intoArray(r, 0);
+                gv.intoArray(g, 0);
+                bv.intoArray(b, 0);
+
+                // side of the inflection line: 0 or 3 * 256
+                final IntVector side = gather(scalar.inflectionFromRed, r)
+                        .add(gather(scalar.inflectionFromGreen, g))
+                        .add(gather(scalar.inflectionFromBlue, b))
+                        .lanewise(VectorOperators.LSHR, 31)
+                        .lanewise(VectorOperators.XOR, 1)
+                        .mul(3 * 256);
+                side.add(rv).intoArray(r, 0);
+                side.add(gv).add(256).intoArray(g, 0);
+                side.add(bv).add(512).intoArray(b, 0);
+
+                final IntVector red = simulate(scalar.redTable, r, g, b);
+                final IntVector green = simulate(scalar.greenTable, r, g, b);
+                final IntVector blue = simulate(scalar.blueTable, r, g, b);
+
+                encode(red, linearToRed).lanewise(VectorOperators.LSHL, 16)
+                        .or(encode(green, linearToGreen).lanewise(VectorOperators.LSHL, 8))
+                        .or(encode(blue, linearToBlue))
+                        .or(0xff000000)
+                        .intoArray(outData, i);
+
+                // colors with a value close to a level are computed with
+                // floating point, as in Simulator.BrettelFilter.filterRGB()
+                final VectorMask<Integer> close = fraction(red)
+                        .min(fraction(green))
+                        .min(fraction(blue))
+                        .compare(VectorOperators.LT, 2 * Simulator.BrettelFilter.MARGIN);
+                if (close.anyTrue()) {
+                    for (int lane = 0; lane < length; lane++) {
+                        if (close.laneIsSet(lane)) {
+                            outData[i + lane] = scalar.filterRGB(inData[i + lane]);
+                        }
+                    }
+                }
+            }
+            super.filter(inData, outData, i, to);
+        }
+
+        /**
+         * Computes one simulated linear RGB channel, scaled by
+         * 2^FRACTION_BITS.
+         *
+         * @param table The table with the contributions to the channel.
+         * @param r Indices of the red contributions in the table.
+         * @param g Indices of the green contributions in the table.
+         * @param b Indices of the blue contributions in the table.
+         */
+        private static IntVector simulate(int[] table, int[] r, int[] g, int[] b) {
+            return gather(table, r)
+                    .add(gather(table, g))
+                    .add(gather(table, b));
+        }
+
+        /**
+         * Returns the fractional part of simulated linear values plus MARGIN,
+         * which is less than 2 * MARGIN for values close to a level.
+         */
+        private static IntVector fraction(IntVector linear) {
+            return linear.add(Simulator.BrettelFilter.MARGIN)
+                    .and(Simulator.BrettelFilter.FRACTION_MASK);
+        }
+
+        /**
+         * Converts simulated linear values to the values of the display.
+         *
+         * @param linear Simulated linear values, scaled by 2^FRACTION_BITS.
+         * @param toChannel Linear RGB to the values of the channel.
+         */
+        private static IntVector encode(IntVector linear, int[] toChannel) {
+            final int[] levels = new int[SPECIES.length()];
+            linear.lanewise(VectorOperators.ASHR, Simulator.BrettelFilter.FRACTION_BITS)
+                    .max(0).min(255)
+                    .intoArray(levels, 0);
+            return gather(toChannel, levels);
+        }
+    }
+
+    /**
+     * Vector version of Simulator.GrayscaleFilter.
+     */
+    private static final class GrayscaleFilter extends SimulationFilter {
+
+        private final Simulator.GrayscaleFilter scalar;
+
+        /**
+         * Linear RGB to the red, green and blue values of the display.
+         */
+        private final int[] linearToRed, linearToGreen, linearToBlue;
+
+        GrayscaleFilter(Simulator.GrayscaleFilter scalar) {
+            this.scalar = scalar;
+            final int[][] tables = toIntTables(scalar.linearToRed,
+                    scalar.linearToGreen, scalar.linearToBlue);
+            linearToRed = tables[0];
+            linearToGreen = tables[1];
+            linearToBlue = tables[2];
+        }
+
+        @Override
+        int filterRGB(int rgb) {
+            return scalar.filterRGB(rgb);
+        }
+
+        @Override
+        long filterRGB48(long rgb) {
+            return scalar.filterRGB48(rgb);
+        }
+
+        @Override
+        void filter(int[] inData, int[] outData, int from, int to) {
+            final int length = SPECIES.length();
+            final int[] r = new int[length];
+            final int[] g = new int[length];
+            final int[] b = new int[length];
+            final int end = from + SPECIES.loopBound(to - from);
+            int i = from;
+            for (; i < end; i += length) {
+                // unpack the channels
+                final IntVector in = IntVector.fromArray(SPECIES, inData, i);
+                in.lanewise(VectorOperators.LSHR, 16).and(0xff).intoArray(r, 0);
+                in.lanewise(VectorOperators.LSHR, 8).and(0xff).intoArray(g, 0);
+                in.and(0xff).intoArray(b, 0);
+
+                // divide by 2^16 and by 2^8 to rescale
+                gather(scalar.luminanceFromRed, r)
+                        .add(gather(scalar.luminanceFromGreen, g))
+                        .add(gather(scalar.luminanceFromBlue, b))
+                        .lanewise(VectorOperators.LSHR, 24)
+                        .intoArray(r, 0);
+
+                // convert linear rgb to gamma corrected sRGB
+                final IntVector red = gather(linearToRed, r);
+                final IntVector green = linearToGreen == linearToRed
+                        ? red : gather(linearToGreen, r);
+                final IntVector blue = linearToBlue == linearToRed
+                        ? red : gather(linearToBlue, r);
+                red.lanewise(VectorOperators.LSHL, 16)
+                        .or(green.lanewise(VectorOperators.LSHL, 8))
+                        .or(blue)
+                        .or(0xff000000)
+                        .intoArray(outData, i);
+            }
+            super.filter(inData, outData, i, to);
+        }
+    }
+
+    /**
+     * Vector version of MatrixFilter, also used for its subclasses, which only
+     * differ in the matrix.
+     */
+    private static final class MatrixVectorFilter extends SimulationFilter {
+
+        private final MatrixFilter scalar;
+
+        /**
+         * Linear RGB to the red, green and blue values of the display.
+         */
+        private final int[] linearToRed, linearToGreen, linearToBlue;
+
+        MatrixVectorFilter(MatrixFilter scalar) {
+            this.scalar = scalar;
+            final int[][] tables = toIntTables(scalar.linearToRed,
+                    scalar.linearToGreen, scalar.linearToBlue);
+            linearToRed = tables[0];
+            linearToGreen = tables[1];
+            linearToBlue = tables[2];
+        }
+
+        @Override
+        int filterRGB(int rgb) {
+            return scalar.filterRGB(rgb);
+        }
+
+        @Override
+        long filterRGB48(long rgb) {
+            return scalar.filterRGB48(rgb);
+        }
+
+        @Override
+        void filter(int[] inData, int[] outData, int from, int to) {
+            final int length = SPECIES.length();
+            final int[] r = new int[length];
+            final int[] g = new int[length];
+            final int[] b = new int[length];
+            final int[] linear = new int[length];
+            final int end = from + SPECIES.loopBound(to - from);
+            int i = from;
+            for (; i < end; i += length) {
+                // unpack the channels, offset to the green and blue entries
+                // of the tables
+                final IntVector in = IntVector.fromArray(SPECIES, inData, i);
+                in.lanewise(VectorOperators.LSHR, 16).and(0xff).intoArray(r, 0);
+                in.lanewise(VectorOperators.LSHR, 8).and(0xff).add(256).intoArray(g, 0);
+                in.and(0xff).add(512).intoArray(b, 0);
+
+                final IntVector red = simulate(scalar.redTable, linearToRed, r, g, b, linear);
+                final IntVector green = simulate(scalar.greenTable, linearToGreen, r, g, b, linear);
+                final IntVector blue = simulate(scalar.blueTable, linearToBlue, r, g, b, linear);
+
+                red.lanewise(VectorOperators.LSHL, 16)
+                        .or(green.lanewise(VectorOperators.LSHL, 8))
+                        .or(blue)
+                        .or(0xff000000)
+                        .intoArray(outData, i);
+            }
+            super.filter(inData, outData, i, to);
+        }
+
+        /**
+         * Computes one simulated sRGB channel.
+         *
+         * @param table The table with the contributions to the channel.
+         * @param toChannel Linear RGB to the values of the channel.
+         * @param r Indices of the red contributions in the table.
+         * @param g Indices of the green contributions in the table.
+         * @param b Indices of the blue contributions in the table.
+         * @param linear Receives the simulated linear values.
+         */
+        private static IntVector simulate(int[] table, int[] toChannel,
+                int[] r, int[] g, int[] b, int[] linear) {
+            gather(table, r)
+                    .add(gather(table, g))
+                    .add(gather(table, b))
+                    .lanewise(VectorOperators.ASHR, MatrixFilter.SHIFT)
+                    .max(0).min(255)
+                    .intoArray(linear, 0);
+            return gather(toChannel, linear);
+        }
+    }
+}
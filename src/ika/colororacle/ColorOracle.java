@@ -50,6 +50,7 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
     private final Image protanPanel = loadImage("protanpanel.png");
     private final Image tritanPanel = loadImage("tritanpanel.png");
     private final Image grayscalePanel = loadImage("grayscalepanel.png");
+    private final Image daltonizedPanel = loadImage("daltonizedpanel.png");
 
     /**
      * Wait a few milliseconds before taking a screenshot until the menu has
@@ -58,11 +59,12 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
     private static final long SLEEP_BEFORE_SCREENSHOT_MILLISECONDS = 300;
 
     /**
-     * Enumerate the four possible states of the current simulation.
+     * Enumerate the possible states of the current simulation. daltonize is
+     * not a simulation, but a correction of the colors for deuteranopia.
      */
-    protected enum Simulation {
+    public enum Simulation {
 
-        normal, deutan, protan, tritan, grayscale
+        normal, deutan, protan, tritan, grayscale, daltonize
     }
 
     /**
@@ -80,6 +82,11 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
      */
     private final Simulator simulator = new Simulator();
 
+    /**
+     * The images for the simulations, reused when the simulation type changes.
+     */
+    private final ImagePool imagePool = new ImagePool();
+
     /**
      * Menu items for different types of vision that will be added to the tray
      * menu.
@@ -89,6 +96,7 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
     private final CheckboxMenuItem protanMenuItem = new CheckboxMenuItem();
     private final CheckboxMenuItem tritanMenuItem = new CheckboxMenuItem();
     private final CheckboxMenuItem grayscaleMenuItem = new CheckboxMenuItem();
+    private final CheckboxMenuItem daltonizeMenuItem = new CheckboxMenuItem();
 
     /**
      * The About menu item that will be added to the tray menu.
@@ -238,12 +246,23 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
     private void hideSimulation() {
 
         for (Screen screen : Screen.getScreens()) {
+            releaseImage(screen.getSimulationImage());
             screen.hideSimulation();
         }
         Screen.getScreens().clear();
 
     }
 
+    /**
+     * Returns a simulated image that is not displayed anymore to the image
+     * pool.
+     */
+    private void releaseImage(Image image) {
+        if (image instanceof BufferedImage) {
+            imagePool.release((BufferedImage) image);
+        }
+    }
+
     /**
      * Initializes the tray icon and attaches it to the system tray.
      */
@@ -401,6 +420,22 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
         });
         menu.add(grayscaleMenuItem);
 
+        // colors corrected for deutan vision
+        menu.addSeparator();
+        daltonizeMenuItem.setLabel("Daltonize for Deuteranopia");
+        daltonizeMenuItem.addItemListener(new java.awt.event.ItemListener() {
+
+            @Override
+            public void itemStateChanged(ItemEvent evt) {
+                if (evt.getStateChange() == ItemEvent.SELECTED) {
+                    simulate(ColorOracle.Simulation.daltonize);
+                } else if (currentSimulation == Simulation.daltonize) {
+                    daltonizeMenuItem.setState(true); // this will not trigger another event
+                }
+            }
+        });
+        menu.add(daltonizeMenuItem);
+
         menu.addSeparator();
 
         // about
@@ -459,11 +494,21 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
                     screen.takeScreenshot();
                 }
 
-                // apply a simulation filter to the screenshot
-                BufferedImage img = simulator.filter(screen.screenshotImage);
-
-                // show the result of the simulation in a window
+                // apply a simulation filter with the transfer curve of the
+                // screen to the screenshot. The image is taken from the pool
+                // to avoid allocating a full-screen image each time the
+                // simulation type changes.
+                BufferedImage img = simulator.filter(screen.screenshotImage,
+                        imagePool.acquire(screen.screenshotImage),
+                        screen.getTransferCurve());
+
+                // show the result of the simulation in a window, and return
+                // the image that was displayed before to the pool
+                Image previousImage = screen.getSimulationImage();
                 screen.showSimulationImage(img, this, panel);
+                if (previousImage != img) {
+                    releaseImage(previousImage);
+                }
             }
         } catch (Exception ex) {
             try {
@@ -503,6 +548,7 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
         protanMenuItem.setState(currentSimulation == Simulation.protan);
         tritanMenuItem.setState(currentSimulation == Simulation.tritan);
         grayscaleMenuItem.setState(currentSimulation == Simulation.grayscale);
+        daltonizeMenuItem.setState(currentSimulation == Simulation.daltonize);
     }
 
     /**
@@ -557,6 +603,9 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
                 case grayscale:
                     simulateAndShow(grayscalePanel);
                     break;
+                case daltonize:
+                    simulateAndShow(daltonizedPanel);
+                    break;
             }
         } catch (Exception ex) {
             Logger.getLogger(ColorOracle.class.getName()).log(Level.SEVERE, null, ex);
@@ -0,0 +1,91 @@
+package ika.colororacle;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+
+/**
+ * Compact image formats for the results of filters with fewer than three
+ * independent channels. Grayscale results are stored in one byte per pixel,
+ * and red-green results, where red equals green, in two bytes per pixel. An
+ * ARGB image takes four bytes per pixel.
+ *
+ * The gray pixels are 8-bit indices into a palette of sRGB grays, such that
+ * getRGB() and drawing return the gamma-corrected sRGB values written by the
+ * filters. TYPE_BYTE_GRAY cannot be used, as its color space is linear and
+ * getRGB() would return grays that are too light. The red-green pixels are
+ * 16-bit indices 0xRRBB into a palette, which is expanded to RGB when the
+ * image is drawn.
+ */
+final class CompactFormats {
+
+    /**
+     * The color model of gray images, with the sRGB gray i at index i.
+     */
+    private static final IndexColorModel GRAY_COLOR_MODEL = createGrayColorModel();
+
+    /**
+     * The color model of red-green images, created when first needed.
+     */
+    private static IndexColorModel redGreenColorModel = null;
+
+    private CompactFormats() {
+    }
+
+    /**
+     * Creates an image for gray results with TYPE_BYTE_INDEXED.
+     */
+    static BufferedImage createGrayImage(int width, int height) {
+        return new BufferedImage(GRAY_COLOR_MODEL,
+                GRAY_COLOR_MODEL.createCompatibleWritableRaster(width, height),
+                false, null);
+    }
+
+    /**
+     * Creates an image for red-green results with 16-bit indices.
+     */
+    static BufferedImage createRedGreenImage(int width, int height) {
+        final IndexColorModel cm = getRedGreenColorModel();
+        return new BufferedImage(cm, cm.createCompatibleWritableRaster(width, height),
+                false, null);
+    }
+
+    /**
+     * Returns true if a color model belongs to an image created by
+     * createGrayImage().
+     */
+    static boolean isGray(ColorModel cm) {
+        return cm == GRAY_COLOR_MODEL;
+    }
+
+    /**
+     * Returns true if a color model belongs to an image created by
+     * createRedGreenImage().
+     */
+    static synchronized boolean isRedGreen(ColorModel cm) {
+        return cm != null && cm == redGreenColorModel;
+    }
+
+    private static IndexColorModel createGrayColorModel() {
+        final int[] palette = new int[256];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = 0xff000000 | i << 16 | i << 8 | i;
+        }
+        return new IndexColorModel(8, palette.length, palette, 0, false, -1,
+                DataBuffer.TYPE_BYTE);
+    }
+
+    private static synchronized IndexColorModel getRedGreenColorModel() {
+        if (redGreenColorModel == null) {
+            final int[] palette = new int[1 << 16];
+            for (int i = 0; i < palette.length; i++) {
+                final int red = i >> 8;
+                palette[i] = 0xff000000 | red << 16 | red << 8 | (i & 0xff);
+            }
+            redGreenColorModel = new IndexColorModel(16, palette.length, palette,
+                    0, false, -1, DataBuffer.TYPE_USHORT);
+        }
+        return redGreenColorModel;
+    }
+}
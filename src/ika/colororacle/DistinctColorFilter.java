@@ -0,0 +1,285 @@
+package ika.colororacle;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A filter that converts each distinct color of an image only once. The
+ * pixels are first collected in a hash table, then the distinct colors are
+ * converted by another filter, and finally all pixels are replaced by the
+ * converted colors in the table. Maps and charts often contain a few thousand
+ * colors in millions of pixels.
+ *
+ * If an image contains too many distinct colors, the other filter converts
+ * the pixels directly. The system property ika.colororacle.maxDistinctColors
+ * sets the maximum number of distinct colors.
+ */
+final class DistinctColorFilter extends SimulationFilter {
+
+    /**
+     * The name of the system property for the maximum number of distinct
+     * colors. The property is read once, when the first filter is created.
+     */
+    static final String MAX_COLORS_PROPERTY = "ika.colororacle.maxDistinctColors";
+
+    /**
+     * The default maximum number of distinct colors.
+     */
+    private static final int DEFAULT_MAX_COLORS = 1 << 16;
+
+    /**
+     * The maximum number of distinct colors, read from the system property
+     * once, such that filtering does not read the system properties.
+     */
+    private static final int MAX_COLORS = Math.max(1,
+            Integer.getInteger(MAX_COLORS_PROPERTY, DEFAULT_MAX_COLORS));
+
+    /**
+     * The hash table is used for at most this fraction of the pixels, as
+     * there is nothing to gain when most pixels have a different color.
+     */
+    private static final int MIN_PIXELS_PER_COLOR = 4;
+
+    /**
+     * Marks empty entries of the hash table. Colors are stored without the
+     * alpha bits, so this is not a valid key.
+     */
+    private static final int EMPTY = -1;
+
+    /**
+     * Each thread has its own hash table, which is reused for all images.
+     */
+    private static final ThreadLocal<ColorTable> COLOR_TABLE = new ThreadLocal<ColorTable>() {
+
+        @Override
+        protected ColorTable initialValue() {
+            return new ColorTable();
+        }
+    };
+
+    /**
+     * Counters for the filtered pixels, the distinct colors found, and the
+     * number of times there were too many distinct colors.
+     */
+    private static final AtomicLong pixels = new AtomicLong();
+    private static final AtomicLong distinctColors = new AtomicLong();
+    private static final AtomicLong bailouts = new AtomicLong();
+
+    /**
+     * The filter converting the distinct colors.
+     */
+    private final SimulationFilter filter;
+
+    /**
+     * The initial capacity of the hash table. The table grows when it is half
+     * full. A small table fits in the processor caches.
+     */
+    private static final int MIN_CAPACITY = 1 << 12;
+
+    /**
+     * A hash table with open addressing and linear probing, mapping colors
+     * to the order in which they were found. Only the first capacity entries
+     * of the arrays are used, such that a table enlarged for one image does
+     * not slow down images with fewer colors.
+     */
+    private static final class ColorTable {
+
+        int[] keys = new int[0];
+        int[] ordinals = new int[0];
+
+        /**
+         * The positions of the used entries, in the order in which the colors
+         * were found.
+         */
+        int[] used = new int[0];
+        int size = 0;
+        int capacity = 0;
+
+        /**
+         * The distinct colors and their simulated colors, in the order in
+         * which they were found.
+         */
+        int[] colors = new int[0];
+        int[] simulated = new int[0];
+
+        /**
+         * Empties the table.
+         */
+        void clear() {
+            for (int i = 0; i < size; i++) {
+                keys[used[i]] = EMPTY;
+            }
+            size = 0;
+            capacity = MIN_CAPACITY;
+            if (keys.length < capacity) {
+                resize(capacity);
+            }
+        }
+
+        /**
+         * Doubles the capacity and inserts the colors again.
+         */
+        void grow() {
+            final int[] colors = new int[size];
+            for (int i = 0; i < size; i++) {
+                colors[i] = keys[used[i]];
+                keys[used[i]] = EMPTY;
+            }
+            capacity *= 2;
+            if (keys.length < capacity) {
+                resize(capacity);
+            }
+            final int mask = capacity - 1;
+            for (int i = 0; i < size; i++) {
+                int slot = hash(colors[i]) & mask;
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = colors[i];
+                ordinals[slot] = i;
+                used[i] = slot;
+            }
+        }
+
+        private void resize(int length) {
+            keys = new int[length];
+            ordinals = new int[length];
+            // the table grows after more than half of the entries are used
+            used = new int[length / 2 + 1];
+            Arrays.fill(keys, EMPTY);
+        }
+
+        /**
+         * Copies the distinct colors to the colors array.
+         */
+        void collectColors() {
+            if (colors.length < size) {
+                colors = new int[used.length];
+                simulated = new int[used.length];
+            }
+            for (int i = 0; i < size; i++) {
+                colors[i] = keys[used[i]];
+            }
+        }
+    }
+
+    /**
+     * Creates a new filter.
+     *
+     * @param filter The filter converting the distinct colors.
+     */
+    DistinctColorFilter(SimulationFilter filter) {
+        this.filter = filter;
+    }
+
+    @Override
+    int filterRGB(int rgb) {
+        return filter.filterRGB(rgb);
+    }
+
+    @Override
+    long filterRGB48(long rgb) {
+        return filter.filterRGB48(rgb);
+    }
+
+    @Override
+    void filter(int[] inData, int[] outData, int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        if (inData == outData) {
+            // the destination temporarily holds other values
+            filter.filter(inData, outData, from, to);
+            return;
+        }
+        final int maxColors = Math.min(MAX_COLORS,
+                Math.max(1, (to - from) / MIN_PIXELS_PER_COLOR));
+        final ColorTable table = COLOR_TABLE.get();
+        table.clear();
+
+        // collect the distinct colors, and temporarily store the order in
+        // which each color was found in the destination
+        int[] keys = table.keys;
+        int[] ordinals = table.ordinals;
+        int mask = table.capacity - 1;
+        int prevIn = EMPTY;
+        int prevOrdinal = 0;
+        for (int i = from; i < to; i++) {
+            final int in = inData[i] & 0xffffff;
+            if (in != prevIn) {
+                prevIn = in;
+                int slot = hash(in) & mask;
+                int key = keys[slot];
+                while (key != in && key != EMPTY) {
+                    slot = (slot + 1) & mask;
+                    key = keys[slot];
+                }
+                if (key == in) {
+                    prevOrdinal = ordinals[slot];
+                } else {
+                    if (table.size == maxColors) {
+                        // too many colors, convert the pixels directly
+                        table.clear();
+                        bailouts.incrementAndGet();
+                        pixels.addAndGet(to - from);
+                        filter.filter(inData, outData, from, to);
+                        return;
+                    }
+                    prevOrdinal = table.size++;
+                    keys[slot] = in;
+                    ordinals[slot] = prevOrdinal;
+                    table.used[prevOrdinal] = slot;
+                    if (table.size * 2 > table.capacity) {
+                        table.grow();
+                        keys = table.keys;
+                        ordinals = table.ordinals;
+                        mask = table.capacity - 1;
+                    }
+                }
+            }
+            outData[i] = prevOrdinal;
+        }
+        final int size = table.size;
+
+        // convert all distinct colors at once
+        table.collectColors();
+        final int[] simulated = table.simulated;
+        filter.filter(table.colors, simulated, 0, size);
+
+        // replace the pixels with the converted colors
+        for (int i = from; i < to; i++) {
+            outData[i] = simulated[outData[i]];
+        }
+
+        pixels.addAndGet(to - from);
+        distinctColors.addAndGet(size);
+    }
+
+    private static int hash(int rgb) {
+        final int h = rgb * 0x9e3779b1;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns the number of pixels filtered so far. Pixels of images with too
+     * many distinct colors are included.
+     */
+    static long getPixels() {
+        return pixels.get();
+    }
+
+    /**
+     * Returns the number of distinct colors found so far. The colors of
+     * images with too many distinct colors are not counted.
+     */
+    static long getDistinctColors() {
+        return distinctColors.get();
+    }
+
+    /**
+     * Returns the number of times there were too many distinct colors so far.
+     */
+    static long getBailouts() {
+        return bailouts.get();
+    }
+}
@@ -0,0 +1,108 @@
+package ika.colororacle;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.lang.ref.SoftReference;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A pool of images for the results of simulations. A full-screen image takes
+ * tens of megabytes, and allocating a new one each time the simulation type
+ * changes causes long garbage collection pauses. Images are borrowed with
+ * acquire() and given back with release() when they are not displayed
+ * anymore.
+ *
+ * Images are grouped by size and type. The pool only keeps soft references
+ * to the images, so they can be reclaimed when memory is low.
+ */
+final class ImagePool {
+
+    /**
+     * The maximum number of images kept for each size and type. One image is
+     * displayed while the next one is filtered.
+     */
+    private static final int MAX_IMAGES_PER_KEY = 2;
+
+    /**
+     * The released images, keyed by size and type.
+     */
+    private final Map<String, ArrayDeque<SoftReference<BufferedImage>>> images
+            = new HashMap<String, ArrayDeque<SoftReference<BufferedImage>>>();
+
+    /**
+     * Returns an image that can be passed as the destination of a
+     * SimulationFilter for a source image. The image has the same size and
+     * type as the source image, or TYPE_INT_ARGB if the source image has an
+     * indexed color model. The pixels of a pooled image are not cleared.
+     *
+     * @param src The source image.
+     * @return An image from the pool or a new image.
+     */
+    synchronized BufferedImage acquire(BufferedImage src) {
+        final int type = getDestinationType(src);
+        final String key = getKey(src.getWidth(), src.getHeight(), type);
+        final ArrayDeque<SoftReference<BufferedImage>> queue = images.get(key);
+        while (queue != null && !queue.isEmpty()) {
+            BufferedImage image = queue.poll().get();
+            if (image != null) {
+                return image;
+            }
+        }
+        if (type == BufferedImage.TYPE_CUSTOM) {
+            ColorModel cm = src.getColorModel();
+            return new BufferedImage(cm,
+                    cm.createCompatibleWritableRaster(src.getWidth(), src.getHeight()),
+                    cm.isAlphaPremultiplied(), null);
+        }
+        return new BufferedImage(src.getWidth(), src.getHeight(), type);
+    }
+
+    /**
+     * Returns an image to the pool. The image must not be used anymore by the
+     * caller. Images with a custom type are not pooled.
+     *
+     * @param image The image, can be null.
+     */
+    synchronized void release(BufferedImage image) {
+        if (image == null || image.getType() == BufferedImage.TYPE_CUSTOM) {
+            return;
+        }
+        final String key = getKey(image.getWidth(), image.getHeight(), image.getType());
+        ArrayDeque<SoftReference<BufferedImage>> queue = images.get(key);
+        if (queue == null) {
+            queue = new ArrayDeque<SoftReference<BufferedImage>>();
+            images.put(key, queue);
+        }
+        for (SoftReference<BufferedImage> ref : queue) {
+            if (ref.get() == image) {
+                return;
+            }
+        }
+        if (queue.size() == MAX_IMAGES_PER_KEY) {
+            queue.poll();
+        }
+        queue.add(new SoftReference<BufferedImage>(image));
+    }
+
+    /**
+     * Removes all images from the pool.
+     */
+    synchronized void clear() {
+        images.clear();
+    }
+
+    private static int getDestinationType(BufferedImage src) {
+        if (src.getColorModel() instanceof IndexColorModel) {
+            // the simulated colors are not in the palette
+            return BufferedImage.TYPE_INT_ARGB;
+        }
+        return src.getType();
+    }
+
+    private static String getKey(int width, int height, int type) {
+        return width + "x" + height + ":" + type;
+    }
+}
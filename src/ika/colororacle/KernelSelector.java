@@ -0,0 +1,421 @@
+package ika.colororacle;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selects the fastest filter for a simulation type. Which filter is fastest
+ * depends on the processor and on the content of the screen: the arithmetic
+ * filters skip pixels with the same color as their left neighbour, which is
+ * fast for user interfaces with large uniform areas, while lookup tables and
+ * vector filters are faster for photos and anti-aliased text.
+ *
+ * When an image is filtered for the first time, all available filters
+ * convert a sample of rows of the image in a background thread, and the
+ * fastest filter is used for later images of a similar size. The comparison
+ * is repeated when another filter becomes available, for example when a
+ * lookup table has been computed in the background. All candidate filters
+ * produce identical results. Large images are filtered in parallel with any
+ * of the filters, so the filters are compared on a single thread.
+ *
+ * The system property ika.colororacle.kernel selects a filter by the name of
+ * its Kernel constant instead.
+ */
+final class KernelSelector {
+
+    /**
+     * The name of the system property for selecting a kernel. Possible values
+     * are the names of the Kernel constants and "auto", the default. The
+     * property is read once, when the first operation is created.
+     */
+    static final String KERNEL_PROPERTY = "ika.colororacle.kernel";
+
+    /**
+     * The kinds of filters.
+     */
+    enum Kernel {
+
+        /**
+         * The arithmetic filter, converting each pixel with a different color
+         * than its left neighbour.
+         */
+        scalar,
+        /**
+         * The arithmetic filter using the Java Vector API.
+         */
+        vector,
+        /**
+         * A DistinctColorFilter, converting each distinct color once.
+         */
+        distinct,
+        /**
+         * A full LookupTable.
+         */
+        table,
+        /**
+         * An interpolating LatticeTable, for testing only. Lattice tables
+         * are approximations and are never selected automatically.
+         */
+        lattice
+    }
+
+    /**
+     * Images are grouped by the base-4 logarithm of their number of pixels.
+     */
+    private static final int SIZE_CLASSES = 16;
+
+    /**
+     * The number of pixels converted by each filter for the calibration.
+     */
+    private static final int SAMPLE_SIZE = 1 << 16;
+
+    /**
+     * Each filter converts the sample repeatedly for this many nanoseconds,
+     * and the fastest run counts. The virtual machine compiles the filters
+     * during the first runs, and the vector filters are very slow until they
+     * are compiled. The color cache of the filter is cleared before each run,
+     * as the cached colors of the previous run would make the filter appear
+     * faster than it is for a new image.
+     */
+    private static final long CALIBRATION_TIME = 250000000L;
+
+    /**
+     * The minimum number of runs of each filter.
+     */
+    private static final int MIN_RUNS = 3;
+
+    /**
+     * The kernels selected for an operation, such as the simulation of a
+     * type of color vision impairment. Each operation has its own
+     * selection, as its filters can be faster or slower than those of other
+     * operations.
+     */
+    static final class Selection {
+
+        /**
+         * The name of the operation for log messages.
+         */
+        private final String name;
+
+        /**
+         * The selected kernels, indexed by the size class of the image.
+         */
+        private final AtomicReferenceArray<Kernel> selected
+                = new AtomicReferenceArray<Kernel>(SIZE_CLASSES);
+
+        /**
+         * The kernels that were available when a kernel was selected, as bit
+         * masks of the kernel ordinals, indexed by the size class. Zero if no
+         * kernel was selected yet.
+         */
+        private final AtomicIntegerArray calibrated = new AtomicIntegerArray(SIZE_CLASSES);
+
+        /**
+         * The kernel used for the last image, or null.
+         */
+        private volatile Kernel lastKernel = null;
+
+        /**
+         * Creates an empty selection.
+         *
+         * @param name The name of the operation for log messages.
+         */
+        Selection(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Returns the kernel used for the last image, or null if no image
+         * has been filtered yet.
+         */
+        Kernel getLastKernel() {
+            return lastKernel;
+        }
+
+        /**
+         * Stores the result of a calibration, unless another calibration with
+         * a different set of filters has been started in the meantime. If
+         * that calibration is started just after the test, its result
+         * replaces this one when it is done.
+         */
+        private void calibrated(int sizeClass, int mask, Kernel fastest) {
+            if (calibrated.get(sizeClass) == mask) {
+                selected.set(sizeClass, fastest);
+            }
+        }
+    }
+
+    /**
+     * The filters available for an operation. Candidates are immutable and
+     * can be shared by threads.
+     */
+    static final class Candidates {
+
+        /**
+         * The filters indexed by the ordinal of their kernel, null for
+         * kernels that are not available.
+         */
+        private final SimulationFilter[] filters;
+
+        /**
+         * The ordinals of the available kernels as a bit mask.
+         */
+        private final int mask;
+
+        private Candidates(SimulationFilter[] filters) {
+            this.filters = filters;
+            int mask = 0;
+            for (int i = 0; i < filters.length; i++) {
+                if (filters[i] != null) {
+                    mask |= 1 << i;
+                }
+            }
+            this.mask = mask;
+        }
+
+        /**
+         * Creates the exact filters for an operation, without a lookup
+         * table.
+         *
+         * @param filter The arithmetic filter.
+         * @param vectorFilter The vector filter, or the arithmetic filter if
+         * vector filters are not available.
+         */
+        static Candidates create(SimulationFilter filter, SimulationFilter vectorFilter) {
+            SimulationFilter[] filters = new SimulationFilter[Kernel.values().length];
+            filters[Kernel.scalar.ordinal()] = filter;
+            if (vectorFilter != filter) {
+                filters[Kernel.vector.ordinal()] = vectorFilter;
+            }
+            filters[Kernel.distinct.ordinal()] = new DistinctColorFilter(vectorFilter);
+            return new Candidates(filters);
+        }
+
+        /**
+         * Returns new candidates with an additional filter.
+         */
+        Candidates with(Kernel kernel, SimulationFilter filter) {
+            SimulationFilter[] filters = this.filters.clone();
+            filters[kernel.ordinal()] = filter;
+            return new Candidates(filters);
+        }
+
+        /**
+         * Returns the filter for a kernel, or null if it is not available.
+         */
+        SimulationFilter get(Kernel kernel) {
+            return filters[kernel.ordinal()];
+        }
+    }
+
+    /**
+     * A single background thread compares the filters.
+     */
+    private static ExecutorService executor = null;
+
+    /**
+     * The kernel requested with the system property, or null.
+     */
+    private static final Kernel REQUESTED_KERNEL = readRequestedKernel();
+
+    private KernelSelector() {
+    }
+
+    /**
+     * Returns the kernel requested with the system property
+     * ika.colororacle.kernel, or null if the kernel is to be selected
+     * automatically.
+     */
+    static Kernel getRequestedKernel() {
+        return REQUESTED_KERNEL;
+    }
+
+    private static Kernel readRequestedKernel() {
+        String kernel = System.getProperty(KERNEL_PROPERTY);
+        if (kernel == null || "auto".equalsIgnoreCase(kernel.trim())) {
+            return null;
+        }
+        try {
+            return Kernel.valueOf(kernel.trim().toLowerCase());
+        } catch (IllegalArgumentException ex) {
+            Logger.getLogger(KernelSelector.class.getName()).log(Level.WARNING,
+                    "Unknown kernel {0}", kernel);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the fastest filter for an image. This can be called concurrently
+     * and neither locks nor allocates.
+     *
+     * If the filters have not been compared for the operation and size of the
+     * image, null is returned, and the caller must pass a sample of the pixels
+     * to calibrate(), which starts the comparison and returns the filter to
+     * use in the meantime.
+     *
+     * @param selection The kernels selected for the operation.
+     * @param candidates The filters currently available for the operation.
+     * @param width The number of pixels in a row.
+     * @param height The number of rows.
+     * @return The filter to use, or null if calibrate() must be called.
+     */
+    static SimulationFilter select(Selection selection, Candidates candidates,
+            int width, int height) {
+        Kernel kernel = getRequestedKernel();
+        if (kernel != null && candidates.get(kernel) == null) {
+            // a table may still be computed in the background
+            Logger.getLogger(KernelSelector.class.getName()).log(Level.FINE,
+                    "Kernel {0} is not available", kernel);
+            kernel = null;
+        }
+
+        if (kernel == null) {
+            final int sizeClass = getSizeClass(width, height);
+            final AtomicIntegerArray calibrated = selection.calibrated;
+            if (calibrated.get(sizeClass) != candidates.mask
+                    && calibrated.getAndSet(sizeClass, candidates.mask) != candidates.mask) {
+                return null;
+            }
+            kernel = getSelected(selection, sizeClass, candidates);
+        }
+        selection.lastKernel = kernel;
+        return candidates.get(kernel);
+    }
+
+    /**
+     * Starts comparing the filters in a background thread after select()
+     * returned null.
+     *
+     * @param selection The kernels selected for the operation.
+     * @param candidates The filters passed to select().
+     * @param pixels The pixels to filter. A sample of the rows is copied to
+     * time the filters.
+     * @param height The number of rows.
+     * @return The filter to use until the comparison is done.
+     */
+    static SimulationFilter calibrate(Selection selection, Candidates candidates,
+            PixelRows pixels, int height) {
+        final int sizeClass = getSizeClass(pixels.width, height);
+        startCalibration(selection, sizeClass, candidates, pixels, height);
+        final Kernel kernel = getSelected(selection, sizeClass, candidates);
+        selection.lastKernel = kernel;
+        return candidates.get(kernel);
+    }
+
+    /**
+     * Returns the kernel selected for a size class, or the arithmetic filter
+     * if no available kernel has been selected.
+     */
+    private static Kernel getSelected(Selection selection, int sizeClass,
+            Candidates candidates) {
+        final Kernel kernel = selection.selected.get(sizeClass);
+        if (kernel == null || candidates.get(kernel) == null) {
+            return Kernel.scalar;
+        }
+        return kernel;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Color Oracle kernel calibration");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Returns the size class of an image.
+     */
+    private static int getSizeClass(int width, int height) {
+        final long pixels = (long) width * height;
+        final int log2 = 63 - Long.numberOfLeadingZeros(Math.max(1, pixels));
+        return Math.min(SIZE_CLASSES - 1, log2 / 2);
+    }
+
+    /**
+     * Starts timing the candidate filters on a sample of an image in a
+     * background thread.
+     */
+    private static void startCalibration(final Selection selection, final int sizeClass,
+            final Candidates candidates, PixelRows pixels, int height) {
+        // copy the sample now, such that the pixels are not retained
+        final int[] sample = createSample(pixels, height);
+        final String size = pixels.width + "x" + height;
+        getExecutor().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                Kernel fastest = calibrate(candidates, sample);
+                selection.calibrated(sizeClass, candidates.mask, fastest);
+                Logger.getLogger(KernelSelector.class.getName()).log(Level.INFO,
+                        "Selected {0} kernel for {1} {2}",
+                        new Object[]{fastest, selection.name, size});
+            }
+        });
+    }
+
+    /**
+     * Times all candidate filters on a sample of pixels.
+     *
+     * @return The fastest kernel.
+     */
+    private static Kernel calibrate(Candidates candidates, int[] sample) {
+        final int[] out = new int[sample.length];
+        Kernel fastest = null;
+        long fastestTime = Long.MAX_VALUE;
+        StringBuilder sb = new StringBuilder();
+        for (Kernel kernel : Kernel.values()) {
+            final SimulationFilter filter = candidates.get(kernel);
+            if (filter == null) {
+                continue;
+            }
+            long time = Long.MAX_VALUE;
+            final long end = System.nanoTime() + CALIBRATION_TIME;
+            for (int run = 0; run < MIN_RUNS || System.nanoTime() < end; run++) {
+                filter.clearColorCache();
+                final long start = System.nanoTime();
+                filter.filter(sample, out, 0, sample.length);
+                time = Math.min(time, System.nanoTime() - start);
+            }
+            if (time < fastestTime) {
+                fastestTime = time;
+                fastest = kernel;
+            }
+            sb.append(' ').append(kernel).append(' ');
+            sb.append(time / 1000).append(" us");
+        }
+        Logger.getLogger(KernelSelector.class.getName()).log(Level.FINE,
+                "Sample of {0} pixels:{1}", new Object[]{sample.length, sb});
+        return fastest;
+    }
+
+    /**
+     * Copies evenly spaced rows of an image to an array.
+     *
+     * @return An array with about SAMPLE_SIZE pixels, or all pixels of small
+     * images.
+     */
+    private static int[] createSample(PixelRows pixels, int height) {
+        final int width = pixels.width;
+        final int rows = Math.max(1, Math.min(height, SAMPLE_SIZE / Math.max(1, width)));
+        final int[] sample = new int[rows * width];
+        for (int i = 0; i < rows; i++) {
+            final int y = (int) ((long) i * height / rows);
+            pixels.read(y, sample, i * width);
+        }
+        return sample;
+    }
+}
@@ -0,0 +1,317 @@
+package ika.colororacle;
+
+import ika.colororacle.ColorOracle.Simulation;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A compact lookup table with the simulated colors for the nodes of a regular
+ * lattice in the RGB cube. Colors between the nodes are computed by
+ * tetrahedral interpolation. With 33 x 33 x 33 nodes a table takes less than
+ * 300 KB, compared to 64 MB for a full LookupTable, and fits in the processor
+ * caches. The interpolated colors are approximations; getMaxError() returns
+ * the largest difference to the arithmetic filter. This difference is largest
+ * for dark colors, because the arithmetic filters quantize linear RGB to 8
+ * bits, and the first steps in linear RGB are large steps in sRGB. With the
+ * default of 33 nodes along each axis, it is 18 to 29 of 255 sRGB levels,
+ * depending on the simulation type, which is clearly visible in dark areas.
+ * The error of each table is logged when the table is created.
+ *
+ * More nodes in the dark range do not help: the exact simulated colors jump
+ * by up to 20 sRGB levels between the first levels of linear RGB, and these
+ * jumps are not aligned with the nodes for most colors. With nodes spaced
+ * more densely towards black the error is 18 to 35 levels, and even with
+ * 129 nodes along each axis it is 10 to 20 levels. Lattice tables are
+ * therefore only for testing, and are not a supported value of the
+ * ika.colororacle.lut property.
+ */
+final class LatticeTable {
+
+    /**
+     * The name of the system property for the number of nodes along each axis
+     * of the lattice. More nodes reduce the interpolation error only slowly:
+     * as long as the nodes are far apart, the dark colors between the first
+     * nodes have errors of many sRGB levels.
+     */
+    static final String SIZE_PROPERTY = "ika.colororacle.latticeSize";
+
+    /**
+     * The default number of nodes along each axis.
+     */
+    static final int DEFAULT_SIZE = 33;
+
+    /**
+     * The tables created so far, indexed by the ordinal of the simulation type.
+     */
+    private static final LatticeTable[] tables
+            = new LatticeTable[Simulation.values().length];
+
+    /**
+     * A single background thread computes the errors of new tables for the
+     * log, created when first needed.
+     */
+    private static ExecutorService executor = null;
+
+    /**
+     * The number of nodes along each axis.
+     */
+    private final int size;
+
+    /**
+     * The simulated colors at the nodes, with red varying slowest. Each
+     * channel is stored in a separate 16 bit field (0x0000RRRRGGGGBBBB), such
+     * that the three channels can be interpolated with a single
+     * multiplication per node.
+     */
+    private final long[] nodes;
+
+    /**
+     * For each 8-bit channel value, the offset of the lower node in the nodes
+     * array, separately for red, green and blue.
+     */
+    private final int[] rOffset = new int[256];
+    private final int[] gOffset = new int[256];
+    private final int[] bOffset = new int[256];
+
+    /**
+     * For each 8-bit channel value, the position between the lower and the
+     * upper node, in fixed point between 0 and 256.
+     */
+    private final int[] fraction = new int[256];
+
+    /**
+     * The filter used to compute the node colors.
+     */
+    private final SimulationFilter filter;
+
+    /**
+     * The largest difference in a channel to the filter, or -1 if it has not
+     * been computed yet.
+     */
+    private int maxError = -1;
+
+    private LatticeTable(SimulationFilter filter, int size) {
+        this.filter = filter;
+        this.size = size;
+
+        // sRGB values of the nodes along each axis
+        int[] nodeValues = new int[size];
+        for (int k = 0; k < size; k++) {
+            nodeValues[k] = (int) Math.round(k * 255. / (size - 1));
+        }
+
+        // position of each channel value in the lattice
+        int k = 0;
+        for (int c = 0; c < 256; c++) {
+            while (k < size - 2 && c >= nodeValues[k + 1]) {
+                k++;
+            }
+            final int lower = nodeValues[k];
+            final int upper = nodeValues[k + 1];
+            fraction[c] = ((c - lower) * 256 + (upper - lower) / 2) / (upper - lower);
+            rOffset[c] = k * size * size;
+            gOffset[c] = k * size;
+            bOffset[c] = k;
+        }
+
+        // simulated colors at the nodes
+        nodes = new long[size * size * size];
+        int i = 0;
+        for (int r = 0; r < size; r++) {
+            for (int g = 0; g < size; g++) {
+                for (int b = 0; b < size; b++) {
+                    final int rgb = nodeValues[r] << 16 | nodeValues[g] << 8 | nodeValues[b];
+                    final int out = filter.filterRGB(rgb);
+                    nodes[i++] = (long) (out & 0xff0000) << 16
+                            | (out & 0xff00) << 8
+                            | out & 0xff;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of nodes along an axis that is requested with the
+     * system property ika.colororacle.latticeSize.
+     */
+    static int getRequestedSize() {
+        int size = Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE);
+        // at least two nodes along each axis, and not more than one node for
+        // each 8-bit value.
+        return Math.max(2, Math.min(256, size));
+    }
+
+    /**
+     * Returns the lattice table for a simulation type. The table is created
+     * when it is first requested, which is fast because only the colors at the
+     * nodes are computed.
+     *
+     * @param type The simulation type.
+     * @param filter The filter used to compute the node colors.
+     * @return The table.
+     */
+    static synchronized LatticeTable get(Simulation type, SimulationFilter filter) {
+        final int id = type.ordinal();
+        final int size = getRequestedSize();
+        if (tables[id] == null || tables[id].size != size) {
+            tables[id] = new LatticeTable(filter, size);
+            logMaxError(type, tables[id]);
+        }
+        return tables[id];
+    }
+
+    /**
+     * Logs the error of a new table in a background thread, as comparing all
+     * colors takes a moment, and the table can be used in the meantime.
+     */
+    private static void logMaxError(final Simulation type, final LatticeTable table) {
+        final Logger logger = Logger.getLogger(LatticeTable.class.getName());
+        if (!logger.isLoggable(Level.INFO)) {
+            return;
+        }
+        getExecutor().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                logger.log(Level.INFO, "{0} lattice with {1}^3 nodes, "
+                        + "colors differ by up to {2} sRGB levels from the exact simulation",
+                        new Object[]{type, table.size, table.getMaxError()});
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Color Oracle lattice error");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Returns the number of nodes along each axis.
+     */
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the largest difference in a color channel between the
+     * interpolated colors and the colors computed by the filter. All 2^24
+     * colors are compared when this is first called, which takes a moment.
+     *
+     * @return The maximum error in 8-bit sRGB units.
+     */
+    synchronized int getMaxError() {
+        if (maxError < 0) {
+            int max = 0;
+            for (int rgb = 0; rgb < LookupTable.SIZE; rgb++) {
+                final int expected = filter.filterRGB(rgb);
+                final int interpolated = interpolate(rgb);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    final int d = ((expected >> shift) & 0xff) - ((interpolated >> shift) & 0xff);
+                    max = Math.max(max, Math.abs(d));
+                }
+            }
+            maxError = max;
+        }
+        return maxError;
+    }
+
+    /**
+     * Computes the simulated color by tetrahedral interpolation between the
+     * four nodes of the tetrahedron that contains the color.
+     *
+     * @param rgb The color in 0xRRGGBB format. The alpha bits are ignored.
+     * @return The simulated opaque color in 0xffRRGGBB format.
+     */
+    int interpolate(int rgb) {
+        final int r = (rgb >> 16) & 0xff;
+        final int g = (rgb >> 8) & 0xff;
+        final int b = rgb & 0xff;
+        final int fr = fraction[r];
+        final int fg = fraction[g];
+        final int fb = fraction[b];
+
+        // corners of the cube containing the color
+        final int i000 = rOffset[r] + gOffset[g] + bOffset[b];
+        final int dr = size * size;
+        final int dg = size;
+        final long[] nodes = this.nodes;
+        final long c000 = nodes[i000];
+        final long c111 = nodes[i000 + dr + dg + 1];
+
+        // the cube is split into six tetrahedra along its main diagonal
+        // from c000 to c111. The tetrahedron containing the color is given by
+        // the order of the three fractions: its two other corners are the
+        // neighbour of c000 along the axis with the largest fraction, and the
+        // neighbour of c111 along the axis with the smallest fraction. The
+        // order is found with sign masks instead of branches, which would be
+        // mispredicted for most neighbouring pixels.
+        int hi = fr;
+        int hiOffset = dr;
+        int m = (hi - fg) >> 31; // -1 if fg > hi, 0 otherwise
+        hi += (fg - hi) & m;
+        hiOffset ^= (hiOffset ^ dg) & m;
+        m = (hi - fb) >> 31;
+        hi += (fb - hi) & m;
+        hiOffset ^= (hiOffset ^ 1) & m;
+        int lo = fr;
+        int loOffset = dr;
+        m = (fg - lo) >> 31; // -1 if fg < lo, 0 otherwise
+        lo += (fg - lo) & m;
+        loOffset ^= (loOffset ^ dg) & m;
+        m = (fb - lo) >> 31;
+        lo += (fb - lo) & m;
+        loOffset ^= (loOffset ^ 1) & m;
+        final int mid = fr + fg + fb - hi - lo;
+
+        // the four weights add up to 256
+        final long sum = (256 - hi) * c000
+                + (hi - mid) * nodes[i000 + hiOffset]
+                + (mid - lo) * nodes[i000 + dr + dg + 1 - loOffset]
+                + lo * c111;
+
+        // round and divide each 16 bit field by 256
+        final long rounded = sum + 0x8000800080L;
+        return 0xff000000
+                | (int) (rounded >> 24) & 0xff0000
+                | (int) (rounded >> 16) & 0xff00
+                | (int) (rounded >> 8) & 0xff;
+    }
+
+    /**
+     * Returns a new filter that converts pixels with this table.
+     */
+    SimulationFilter createFilter() {
+        return new Filter(this);
+    }
+
+    /**
+     * A filter interpolating colors in a lattice table.
+     */
+    private static class Filter extends SimulationFilter {
+
+        private final LatticeTable table;
+
+        Filter(LatticeTable table) {
+            this.table = table;
+        }
+
+        @Override
+        int filterRGB(int rgb) {
+            return table.interpolate(rgb);
+        }
+    }
+}
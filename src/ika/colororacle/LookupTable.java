@@ -0,0 +1,266 @@
+package ika.colororacle;
+
+import ika.colororacle.ColorOracle.Simulation;
+import java.nio.IntBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A lookup table with the simulated color for each of the 2^24 RGB colors.
+ * Filtering with a lookup table is a single indexed load per pixel, which is
+ * faster than the arithmetic filters for screenshots with many different
+ * neighbouring colors, such as photos or anti-aliased text.
+ *
+ * A table uses 64 MB of memory. Tables are therefore only computed when they
+ * are first requested, in a background thread, and are stored in a
+ * TableCache for later use by this and other processes. The system property
+ * ika.colororacle.lut selects between full tables and the arithmetic filters.
+ */
+final class LookupTable {
+
+    /**
+     * The number of entries in a table, one for each 24-bit RGB color.
+     */
+    static final int SIZE = 1 << 24;
+
+    /**
+     * The name of the system property for selecting the lookup table mode.
+     * Supported values are "full" and "none". If the property is not set, no
+     * tables are used, because full tables take 64 MB of memory for each
+     * simulation type.
+     */
+    static final String MODE_PROPERTY = "ika.colororacle.lut";
+
+    /**
+     * The kinds of lookup tables.
+     */
+    enum Mode {
+
+        /**
+         * Full tables with an entry for each RGB color.
+         */
+        full,
+        /**
+         * Compact LatticeTables with interpolated colors, for testing only:
+         * the colors differ from the exact colors by up to 18 to 29 sRGB
+         * levels, see LatticeTable.
+         */
+        lattice,
+        /**
+         * No tables, the arithmetic filters are used.
+         */
+        none
+    }
+
+    /**
+     * The computed tables, indexed by the ordinal of the simulation type.
+     * Filters on other threads read the tables without locking.
+     */
+    private static final AtomicReferenceArray<LookupTable> tables
+            = new AtomicReferenceArray<LookupTable>(Simulation.values().length);
+
+    /**
+     * Flags for the simulation types for which a table is currently being
+     * computed, 1 while computing.
+     */
+    private static final AtomicIntegerArray pending
+            = new AtomicIntegerArray(Simulation.values().length);
+
+    /**
+     * A single background thread computes the tables, one after the other.
+     */
+    private static ExecutorService executor = null;
+
+    /**
+     * The simulated color for each RGB color. This is usually a buffer mapped
+     * from a cache file.
+     */
+    private final IntBuffer table;
+
+    private LookupTable(IntBuffer table) {
+        this.table = table;
+    }
+
+    /**
+     * Returns the kind of lookup tables to use.
+     */
+    static Mode getMode() {
+        String mode = System.getProperty(MODE_PROPERTY);
+        if (mode != null) {
+            try {
+                return Mode.valueOf(mode.trim().toLowerCase());
+            } catch (IllegalArgumentException ex) {
+                Logger.getLogger(LookupTable.class.getName()).log(Level.WARNING,
+                        "Unknown lookup table mode {0}", mode);
+            }
+        }
+        return Mode.none;
+    }
+
+    /**
+     * Returns the lookup table for a simulation type. If the table has not
+     * been computed yet, its computation is started in a background thread,
+     * and null is returned.
+     *
+     * @param type The simulation type.
+     * @param filter The filter used to compute the table.
+     * @return The table or null if it is not available yet.
+     */
+    static LookupTable get(final Simulation type, final SimulationFilter filter) {
+        final int id = type.ordinal();
+        LookupTable table = tables.get(id);
+        if (table == null && pending.compareAndSet(id, 0, 1)) {
+            // the table may have been stored since it was read
+            table = tables.get(id);
+            if (table != null) {
+                pending.set(id, 0);
+                return table;
+            }
+            getExecutor().execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    LookupTable table = null;
+                    try {
+                        table = compute(type, filter);
+                    } catch (OutOfMemoryError err) {
+                        Logger.getLogger(LookupTable.class.getName()).log(Level.WARNING,
+                                "Not enough memory for a lookup table", err);
+                    } finally {
+                        done(id, table);
+                    }
+                }
+            });
+        }
+        return table;
+    }
+
+    private static void done(int id, LookupTable table) {
+        tables.set(id, table);
+        pending.set(id, 0);
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Color Oracle lookup tables");
+                    // don't keep the application alive and don't slow down
+                    // the user interface
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Returns a lookup table from the cache, or computes a new table and
+     * adds it to the cache.
+     *
+     * @param type The simulation type.
+     * @param filter The filter used to compute the table.
+     * @return The table.
+     */
+    static LookupTable compute(Simulation type, final SimulationFilter filter) {
+        IntBuffer table = TableCache.load(type, SIZE);
+        if (table == null) {
+            table = TableCache.store(type, SIZE, new TableCache.TableWriter() {
+
+                @Override
+                public void write(IntBuffer table) {
+                    fill(table, filter);
+                }
+            });
+        }
+        if (table == null) {
+            // the cache is not available
+            table = IntBuffer.wrap(new int[SIZE]);
+            fill(table, filter);
+        }
+        return new LookupTable(table);
+    }
+
+    /**
+     * Fills a lookup table. The table is split into equally sized parts,
+     * which are computed in parallel, one thread per processor.
+     *
+     * @param table The table to fill.
+     * @param filter The filter used to compute the table.
+     */
+    private static void fill(final IntBuffer table, final SimulationFilter filter) {
+        final int nThreads = Runtime.getRuntime().availableProcessors();
+        final int partSize = (SIZE + nThreads - 1) / nThreads;
+        Thread[] threads = new Thread[nThreads];
+        for (int t = 0; t < nThreads; t++) {
+            final int from = t * partSize;
+            final int to = Math.min(SIZE, from + partSize);
+            threads[t] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int rgb = from; rgb < to; rgb++) {
+                        table.put(rgb, filter.filterRGB(rgb));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        // wait for all parts
+        for (Thread thread : threads) {
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns a new filter that converts pixels with this table.
+     */
+    SimulationFilter createFilter() {
+        return new Filter(table);
+    }
+
+    /**
+     * A filter converting each pixel with a single table lookup.
+     */
+    private static class Filter extends SimulationFilter {
+
+        private final IntBuffer table;
+
+        Filter(IntBuffer table) {
+            this.table = table;
+        }
+
+        @Override
+        int filterRGB(int rgb) {
+            return table.get(rgb & 0xffffff);
+        }
+
+        @Override
+        void filter(int[] inData, int[] outData, int from, int to) {
+            final IntBuffer table = this.table;
+            for (int i = from; i < to; i++) {
+                outData[i] = table.get(inData[i] & 0xffffff);
+            }
+        }
+    }
+}
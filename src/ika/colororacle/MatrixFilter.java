@@ -0,0 +1,117 @@
+package ika.colororacle;
+
+/**
+ * A filter multiplying linear RGB colors by a 3x3 matrix. Many simulations of
+ * color vision deficiencies are linear in linear RGB, so a new simulation
+ * only needs a matrix, and gets the same fast path as the other filters.
+ *
+ * The products of the matrix values and the linear RGB values are
+ * precomputed for each 8-bit channel value in fixed point, as in
+ * Simulator.RedGreenFilter, so a pixel takes nine table lookups and no
+ * multiplications. VectorFilters gathers the same tables for several pixels
+ * at once, for this class and its subclasses.
+ */
+class MatrixFilter extends SimulationFilter {
+
+    /**
+     * Number of fractional bits of the matrix values.
+     */
+    private static final int MATRIX_BITS = 15;
+
+    /**
+     * The linear RGB values of the transfer curve have 15 bits, the matrix values
+     * MATRIX_BITS, and the simulated linear RGB values 8 bits.
+     */
+    static final int SHIFT = 15 + MATRIX_BITS - 8;
+
+    /**
+     * The contributions of the red, green and blue input channels to the
+     * simulated linear red, green and blue channels, scaled by 2^SHIFT. Each
+     * table has an entry for each 8-bit channel value: first the
+     * contributions of red, then green, then blue.
+     */
+    final int[] redTable = new int[3 * 256];
+    final int[] greenTable = new int[3 * 256];
+    final int[] blueTable = new int[3 * 256];
+
+    /**
+     * The matrix values scaled by 2^MATRIX_BITS, for 16-bit samples.
+     */
+    private final long[] matrix16 = new long[9];
+
+    /**
+     * Linear values [0..255] to the red, green and blue values of the display.
+     */
+    final byte[] linearToRed;
+    final byte[] linearToGreen;
+    final byte[] linearToBlue;
+
+    /**
+     * The transfer curve of the display.
+     */
+    private final TransferCurve curve;
+
+    /**
+     * Creates a filter.
+     *
+     * @param matrix The matrix converting linear RGB to simulated linear RGB,
+     * row by row. The sum of positive values in a row must be less than 1.9,
+     * so that the fixed point sums do not overflow.
+     * @param curve The transfer curve of the display.
+     */
+    MatrixFilter(double[] matrix, TransferCurve curve) {
+        this.curve = curve;
+        linearToRed = curve.getEncodedTable(0);
+        linearToGreen = curve.getEncodedTable(1);
+        linearToBlue = curve.getEncodedTable(2);
+        for (int i = 0; i < 9; i++) {
+            matrix16[i] = Math.round(matrix[i] * (1 << MATRIX_BITS));
+        }
+        for (int in = 0; in < 3; in++) {
+            final short[] toLinear = curve.getLinearTable(in);
+            for (int i = 0; i < 256; i++) {
+                final int lin = toLinear[i];
+                redTable[in * 256 + i] = (int) (matrix16[in] * lin);
+                greenTable[in * 256 + i] = (int) (matrix16[3 + in] * lin);
+                blueTable[in * 256 + i] = (int) (matrix16[6 + in] * lin);
+            }
+        }
+    }
+
+    @Override
+    int filterRGB(int rgb) {
+        final int r = (0xff0000 & rgb) >> 16;
+        final int g = 256 + ((0xff00 & rgb) >> 8);
+        final int b = 512 + (0xff & rgb);
+
+        // simulated linear rgb [0..255]
+        int red = (redTable[r] + redTable[g] + redTable[b]) >> SHIFT;
+        int green = (greenTable[r] + greenTable[g] + greenTable[b]) >> SHIFT;
+        int blue = (blueTable[r] + blueTable[g] + blueTable[b]) >> SHIFT;
+
+        // clamp and convert reduced linear rgb to gamma corrected rgb
+        red = linearToRed[Math.max(0, Math.min(255, red))] & 0xff;
+        green = linearToGreen[Math.max(0, Math.min(255, green))] & 0xff;
+        blue = linearToBlue[Math.max(0, Math.min(255, blue))] & 0xff;
+
+        return 0xff000000 | red << 16 | green << 8 | blue;
+    }
+
+    @Override
+    long filterRGB48(long rgb) {
+        final char[][] toLinear = curve.getLinearTables16();
+        final long r = toLinear[0][(int) (rgb >>> 32) & 0xffff];
+        final long g = toLinear[1][(int) (rgb >>> 16) & 0xffff];
+        final long b = toLinear[2][(int) rgb & 0xffff];
+
+        final long[] m = matrix16;
+        final long red = (m[0] * r + m[1] * g + m[2] * b) >> MATRIX_BITS;
+        final long green = (m[3] * r + m[4] * g + m[5] * b) >> MATRIX_BITS;
+        final long blue = (m[6] * r + m[7] * g + m[8] * b) >> MATRIX_BITS;
+
+        final char[][] toEncoded = curve.getEncodedTables16();
+        return (long) toEncoded[0][(int) Math.max(0, Math.min(65535, red))] << 32
+                | (long) toEncoded[1][(int) Math.max(0, Math.min(65535, green))] << 16
+                | toEncoded[2][(int) Math.max(0, Math.min(65535, blue))];
+    }
+}
@@ -0,0 +1,83 @@
+package ika.colororacle;
+
+/**
+ * The layout of 8-bit sRGB pixels passed to the raw filter methods of
+ * SimulationOp. Alpha is not premultiplied.
+ *
+ * The packed formats store a pixel in an int, with blue in the least
+ * significant byte, like TYPE_INT_RGB and TYPE_INT_ARGB. In a ByteBuffer, the
+ * ints are read in the byte order of the buffer, so intARGB in a
+ * little-endian buffer is the BGRA byte order of many native renderers. The
+ * other formats store the samples in consecutive bytes in the order of their
+ * names.
+ */
+public enum PixelFormat {
+
+    intRGB(4, true, -1),
+    intARGB(4, true, -1),
+    byteRGB(3, false, -1, 0, 1, 2),
+    byteBGR(3, false, -1, 2, 1, 0),
+    byteRGBA(4, false, 3, 0, 1, 2),
+    byteBGRA(4, false, 3, 2, 1, 0),
+    byteARGB(4, false, 0, 1, 2, 3),
+    byteABGR(4, false, 0, 3, 2, 1);
+
+    /**
+     * The number of bytes of a pixel.
+     */
+    private final int bytesPerPixel;
+
+    /**
+     * True if a pixel is stored in an int.
+     */
+    private final boolean packed;
+
+    /**
+     * The positions of the samples of byte formats, in bytes from the start
+     * of the pixel: red, green, blue, followed by alpha if the format has
+     * alpha.
+     */
+    private final int[] bandOffsets;
+
+    private PixelFormat(int bytesPerPixel, boolean packed, int alpha,
+            int... rgb) {
+        this.bytesPerPixel = bytesPerPixel;
+        this.packed = packed;
+        if (packed) {
+            bandOffsets = null;
+        } else if (alpha < 0) {
+            bandOffsets = rgb;
+        } else {
+            bandOffsets = new int[]{rgb[0], rgb[1], rgb[2], alpha};
+        }
+    }
+
+    /**
+     * Returns the number of bytes of a pixel.
+     */
+    public int getBytesPerPixel() {
+        return bytesPerPixel;
+    }
+
+    /**
+     * Returns true if a pixel is stored in an int.
+     */
+    public boolean isPacked() {
+        return packed;
+    }
+
+    /**
+     * Returns true if the pixels have an alpha channel.
+     */
+    public boolean hasAlpha() {
+        return packed ? this == intARGB : bandOffsets.length > 3;
+    }
+
+    /**
+     * Returns the positions of the red, green, blue and alpha samples in bytes
+     * from the start of a pixel, or null for packed formats.
+     */
+    int[] getBandOffsets() {
+        return bandOffsets == null ? null : bandOffsets.clone();
+    }
+}
@@ -0,0 +1,621 @@
+package ika.colororacle;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.DirectColorModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes rows of pixels of an image in non-premultiplied 0xAARRGGBB
+ * format. Images
+ * with 8-bit samples in interleaved bytes, such as TYPE_3BYTE_BGR and
+ * TYPE_4BYTE_ABGR, and images with 8-bit samples packed in ints, such as
+ * TYPE_INT_BGR, are accessed directly in their data buffers. Other images are
+ * accessed with BufferedImage.getRGB() and setRGB(). Premultiplied samples
+ * are converted with tables. The compact images of CompactFormats are
+ * accessed directly as well, and so are int arrays and ByteBuffers holding
+ * pixels in one of the PixelFormats.
+ */
+abstract class PixelRows {
+
+    /**
+     * Tables converting samples to and from premultiplied alpha, indexed by
+     * alpha << 8 | sample.
+     */
+    private static final byte[] PREMULTIPLY = new byte[256 * 256];
+    private static final byte[] UNPREMULTIPLY = new byte[256 * 256];
+
+    static {
+        for (int a = 0; a < 256; a++) {
+            for (int c = 0; c < 256; c++) {
+                PREMULTIPLY[a << 8 | c] = (byte) ((c * a + 127) / 255);
+                UNPREMULTIPLY[a << 8 | c] = (byte) (a == 0 ? 0
+                        : Math.min(255, (c * 255 + a / 2) / a));
+            }
+        }
+    }
+
+    /**
+     * The width of the image.
+     */
+    final int width;
+
+    /**
+     * True if the samples are premultiplied with alpha.
+     */
+    final boolean premultiplied;
+
+    PixelRows(int width, boolean premultiplied) {
+        this.width = width;
+        this.premultiplied = premultiplied;
+    }
+
+    /**
+     * Converts a premultiplied 0xAARRGGBB pixel to a non-premultiplied pixel.
+     */
+    static int unpremultiply(int argb) {
+        final int a = argb >>> 24;
+        if (a == 255) {
+            return argb;
+        }
+        final int t = a << 8;
+        return argb & 0xff000000
+                | (UNPREMULTIPLY[t | (argb >> 16) & 0xff] & 0xff) << 16
+                | (UNPREMULTIPLY[t | (argb >> 8) & 0xff] & 0xff) << 8
+                | (UNPREMULTIPLY[t | argb & 0xff] & 0xff);
+    }
+
+    /**
+     * Converts a non-premultiplied 0xAARRGGBB pixel to a premultiplied pixel.
+     */
+    static int premultiply(int argb) {
+        final int a = argb >>> 24;
+        if (a == 255) {
+            return argb;
+        }
+        final int t = a << 8;
+        return argb & 0xff000000
+                | (PREMULTIPLY[t | (argb >> 16) & 0xff] & 0xff) << 16
+                | (PREMULTIPLY[t | (argb >> 8) & 0xff] & 0xff) << 8
+                | (PREMULTIPLY[t | argb & 0xff] & 0xff);
+    }
+
+    /**
+     * Returns an object accessing the pixels of an image.
+     */
+    static PixelRows create(BufferedImage image) {
+        final ColorModel cm = image.getColorModel();
+        final WritableRaster raster = image.getRaster();
+        final SampleModel sm = raster.getSampleModel();
+        final DataBuffer buffer = raster.getDataBuffer();
+        final boolean sRGB = cm.getColorSpace().isCS_sRGB();
+        final boolean premultiplied = cm.isAlphaPremultiplied();
+        final int x0 = -raster.getSampleModelTranslateX();
+        final int y0 = -raster.getSampleModelTranslateY();
+
+        if (CompactFormats.isGray(cm) || CompactFormats.isRedGreen(cm)) {
+            ComponentSampleModel csm = (ComponentSampleModel) sm;
+            final int offset = buffer.getOffset() + y0 * csm.getScanlineStride()
+                    + x0 * csm.getPixelStride() + csm.getBandOffsets()[0];
+            if (buffer instanceof DataBufferByte) {
+                return new Gray(image.getWidth(), ((DataBufferByte) buffer).getData(),
+                        offset, csm.getScanlineStride(), csm.getPixelStride());
+            }
+            return new RedGreen(image.getWidth(), ((DataBufferUShort) buffer).getData(),
+                    offset, csm.getScanlineStride(), csm.getPixelStride());
+        }
+
+        if (sRGB && cm instanceof ComponentColorModel
+                && sm instanceof ComponentSampleModel
+                && buffer instanceof DataBufferByte
+                && buffer.getNumBanks() == 1
+                && (sm.getNumBands() == 3 || sm.getNumBands() == 4)) {
+            ComponentSampleModel csm = (ComponentSampleModel) sm;
+            if (csm.getBankIndices()[0] == 0 && is8Bit(csm.getSampleSize())) {
+                return new Bytes(image.getWidth(), premultiplied,
+                        ((DataBufferByte) buffer).getData(),
+                        buffer.getOffset() + y0 * csm.getScanlineStride()
+                        + x0 * csm.getPixelStride(),
+                        csm.getScanlineStride(), csm.getPixelStride(),
+                        csm.getBandOffsets());
+            }
+        }
+
+        if (sRGB && cm instanceof DirectColorModel
+                && sm instanceof SinglePixelPackedSampleModel
+                && buffer instanceof DataBufferInt) {
+            SinglePixelPackedSampleModel sppsm = (SinglePixelPackedSampleModel) sm;
+            int[] offsets = sppsm.getBitOffsets();
+            if (is8Bit(sppsm.getSampleSize())) {
+                return new Ints(image.getWidth(), premultiplied,
+                        ((DataBufferInt) buffer).getData(),
+                        buffer.getOffset() + sppsm.getOffset(x0, y0),
+                        sppsm.getScanlineStride(), offsets);
+            }
+        }
+
+        return new Generic(image);
+    }
+
+    private static boolean is8Bit(int[] sampleSizes) {
+        for (int size : sampleSizes) {
+            if (size != 8) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns an object accessing pixels packed in an int array, in intRGB or
+     * intARGB format.
+     *
+     * @param data The pixels.
+     * @param offset The position of the first pixel in data.
+     * @param scanlineStride The distance between rows in data.
+     * @param width The number of pixels in a row.
+     * @param alpha True for intARGB pixels.
+     */
+    static PixelRows create(int[] data, int offset, int scanlineStride,
+            int width, boolean alpha) {
+        return new Ints(width, false, data, offset, scanlineStride,
+                alpha ? new int[]{16, 8, 0, 24} : new int[]{16, 8, 0});
+    }
+
+    /**
+     * Returns an object accessing pixels in a ByteBuffer. The position and
+     * limit of the buffer are ignored.
+     *
+     * @param buffer The pixels.
+     * @param offset The position of the first pixel in bytes.
+     * @param scanlineStride The distance between rows in bytes.
+     * @param width The number of pixels in a row.
+     * @param format The layout of the pixels.
+     */
+    static PixelRows create(ByteBuffer buffer, int offset, int scanlineStride,
+            int width, PixelFormat format) {
+        if (format.isPacked()) {
+            return new BufferInts(width, buffer, offset, scanlineStride, format.hasAlpha());
+        }
+        return new BufferBytes(width, buffer, offset, scanlineStride,
+                format.getBytesPerPixel(), format.getBandOffsets());
+    }
+
+    /**
+     * Returns true if the image has an alpha channel.
+     */
+    abstract boolean hasAlpha();
+
+    /**
+     * Reads a row of pixels.
+     *
+     * @param y The row.
+     * @param row Receives the pixels in 0xAARRGGBB format. Pixels of images
+     * without alpha are opaque.
+     * @param offset The position of the first pixel in row.
+     */
+    abstract void read(int y, int[] row, int offset);
+
+    /**
+     * Writes a row of pixels.
+     *
+     * @param y The row.
+     * @param row The pixels in 0xAARRGGBB format. The alpha is ignored for
+     * images without alpha.
+     * @param offset The position of the first pixel in row.
+     */
+    abstract void write(int y, int[] row, int offset);
+
+    /**
+     * Pixels with 8-bit samples in interleaved bytes.
+     */
+    private static final class Bytes extends PixelRows {
+
+        private final byte[] data;
+        private final int offset;
+        private final int scanlineStride;
+        private final int pixelStride;
+        private final int r, g, b, a;
+
+        Bytes(int width, boolean premultiplied, byte[] data, int offset,
+                int scanlineStride, int pixelStride, int[] bandOffsets) {
+            super(width, premultiplied && bandOffsets.length > 3);
+            this.data = data;
+            this.offset = offset;
+            this.scanlineStride = scanlineStride;
+            this.pixelStride = pixelStride;
+            r = bandOffsets[0];
+            g = bandOffsets[1];
+            b = bandOffsets[2];
+            a = bandOffsets.length > 3 ? bandOffsets[3] : -1;
+        }
+
+        @Override
+        boolean hasAlpha() {
+            return a >= 0;
+        }
+
+        @Override
+        void read(int y, int[] row, int offset) {
+            final byte[] data = this.data;
+            final int end = offset + width;
+            int p = this.offset + y * scanlineStride;
+            if (a < 0) {
+                for (int x = offset; x < end; x++, p += pixelStride) {
+                    row[x] = 0xff000000
+                            | (data[p + r] & 0xff) << 16
+                            | (data[p + g] & 0xff) << 8
+                            | (data[p + b] & 0xff);
+                }
+            } else {
+                for (int x = offset; x < end; x++, p += pixelStride) {
+                    final int argb = (data[p + a] & 0xff) << 24
+                            | (data[p + r] & 0xff) << 16
+                            | (data[p + g] & 0xff) << 8
+                            | (data[p + b] & 0xff);
+                    row[x] = premultiplied ? unpremultiply(argb) : argb;
+                }
+            }
+        }
+
+        @Override
+        void write(int y, int[] row, int offset) {
+            final byte[] data = this.data;
+            final int end = offset + width;
+            int p = this.offset + y * scanlineStride;
+            if (a < 0) {
+                for (int x = offset; x < end; x++, p += pixelStride) {
+                    final int argb = row[x];
+                    data[p + r] = (byte) (argb >> 16);
+                    data[p + g] = (byte) (argb >> 8);
+                    data[p + b] = (byte) argb;
+                }
+            } else {
+                for (int x = offset; x < end; x++, p += pixelStride) {
+                    final int argb = premultiplied ? premultiply(row[x]) : row[x];
+                    data[p + a] = (byte) (argb >>> 24);
+                    data[p + r] = (byte) (argb >> 16);
+                    data[p + g] = (byte) (argb >> 8);
+                    data[p + b] = (byte) argb;
+                }
+            }
+        }
+    }
+
+    /**
+     * Pixels with 8-bit samples packed in ints in any order, such as
+     * TYPE_INT_BGR.
+     */
+    private static final class Ints extends PixelRows {
+
+        private final int[] data;
+        private final int offset;
+        private final int scanlineStride;
+        private final int r, g, b, a;
+
+        /**
+         * True if the pixels are stored in 0xAARRGGBB or 0xRRGGBB format.
+         */
+        private final boolean argbLayout;
+
+        Ints(int width, boolean premultiplied, int[] data, int offset,
+                int scanlineStride, int[] bitOffsets) {
+            super(width, premultiplied && bitOffsets.length > 3);
+            this.data = data;
+            this.offset = offset;
+            this.scanlineStride = scanlineStride;
+            r = bitOffsets[0];
+            g = bitOffsets[1];
+            b = bitOffsets[2];
+            a = bitOffsets.length > 3 ? bitOffsets[3] : -1;
+            argbLayout = r == 16 && g == 8 && b == 0 && (a < 0 || a == 24);
+        }
+
+        @Override
+        boolean hasAlpha() {
+            return a >= 0;
+        }
+
+        @Override
+        void read(int y, int[] row, int offset) {
+            final int[] data = this.data;
+            final int p = this.offset + y * scanlineStride - offset;
+            final int end = offset + width;
+            if (argbLayout && !premultiplied) {
+                System.arraycopy(data, p + offset, row, offset, width);
+                if (a < 0) {
+                    for (int x = offset; x < end; x++) {
+                        row[x] |= 0xff000000;
+                    }
+                }
+            } else if (argbLayout) {
+                for (int x = offset; x < end; x++) {
+                    row[x] = unpremultiply(data[p + x]);
+                }
+            } else if (a < 0) {
+                for (int x = offset; x < end; x++) {
+                    final int v = data[p + x];
+                    row[x] = 0xff000000
+                            | ((v >>> r) & 0xff) << 16
+                            | ((v >>> g) & 0xff) << 8
+                            | ((v >>> b) & 0xff);
+                }
+            } else {
+                for (int x = offset; x < end; x++) {
+                    final int v = data[p + x];
+                    final int argb = (v >>> a) << 24
+                            | ((v >>> r) & 0xff) << 16
+                            | ((v >>> g) & 0xff) << 8
+                            | ((v >>> b) & 0xff);
+                    row[x] = premultiplied ? unpremultiply(argb) : argb;
+                }
+            }
+        }
+
+        @Override
+        void write(int y, int[] row, int offset) {
+            final int[] data = this.data;
+            final int p = this.offset + y * scanlineStride - offset;
+            final int end = offset + width;
+            if (argbLayout && !premultiplied) {
+                // the alpha bits of images without alpha are ignored
+                System.arraycopy(row, offset, data, p + offset, width);
+            } else if (argbLayout) {
+                for (int x = offset; x < end; x++) {
+                    data[p + x] = premultiply(row[x]);
+                }
+            } else if (a < 0) {
+                for (int x = offset; x < end; x++) {
+                    final int argb = row[x];
+                    data[p + x] = ((argb >> 16) & 0xff) << r
+                            | ((argb >> 8) & 0xff) << g
+                            | (argb & 0xff) << b;
+                }
+            } else {
+                for (int x = offset; x < end; x++) {
+                    final int argb = premultiplied ? premultiply(row[x]) : row[x];
+                    data[p + x] = (argb >>> 24) << a
+                            | ((argb >> 16) & 0xff) << r
+                            | ((argb >> 8) & 0xff) << g
+                            | (argb & 0xff) << b;
+                }
+            }
+        }
+    }
+
+    /**
+     * Pixels with 8-bit samples in interleaved bytes in a ByteBuffer, which
+     * can be a direct buffer.
+     */
+    private static final class BufferBytes extends PixelRows {
+
+        private final ByteBuffer buffer;
+        private final int offset;
+        private final int scanlineStride;
+        private final int pixelStride;
+        private final int r, g, b, a;
+
+        BufferBytes(int width, ByteBuffer buffer, int offset,
+                int scanlineStride, int pixelStride, int[] bandOffsets) {
+            super(width, false);
+            this.buffer = buffer;
+            this.offset = offset;
+            this.scanlineStride = scanlineStride;
+            this.pixelStride = pixelStride;
+            r = bandOffsets[0];
+            g = bandOffsets[1];
+            b = bandOffsets[2];
+            a = bandOffsets.length > 3 ? bandOffsets[3] : -1;
+        }
+
+        @Override
+        boolean hasAlpha() {
+            return a >= 0;
+        }
+
+        @Override
+        void read(int y, int[] row, int offset) {
+            final ByteBuffer buffer = this.buffer;
+            int p = this.offset + y * scanlineStride;
+            final int end = offset + width;
+            for (int x = offset; x < end; x++, p += pixelStride) {
+                row[x] = (a < 0 ? 0xff000000 : buffer.get(p + a) << 24)
+                        | (buffer.get(p + r) & 0xff) << 16
+                        | (buffer.get(p + g) & 0xff) << 8
+                        | (buffer.get(p + b) & 0xff);
+            }
+        }
+
+        @Override
+        void write(int y, int[] row, int offset) {
+            final ByteBuffer buffer = this.buffer;
+            int p = this.offset + y * scanlineStride;
+            final int end = offset + width;
+            for (int x = offset; x < end; x++, p += pixelStride) {
+                final int argb = row[x];
+                buffer.put(p + r, (byte) (argb >> 16));
+                buffer.put(p + g, (byte) (argb >> 8));
+                buffer.put(p + b, (byte) argb);
+                if (a >= 0) {
+                    buffer.put(p + a, (byte) (argb >>> 24));
+                }
+            }
+        }
+    }
+
+    /**
+     * Pixels packed in ints in a ByteBuffer, in the byte order of the buffer.
+     */
+    private static final class BufferInts extends PixelRows {
+
+        private final ByteBuffer buffer;
+        private final int offset;
+        private final int scanlineStride;
+        private final boolean alpha;
+
+        BufferInts(int width, ByteBuffer buffer, int offset,
+                int scanlineStride, boolean alpha) {
+            super(width, false);
+            this.buffer = buffer;
+            this.offset = offset;
+            this.scanlineStride = scanlineStride;
+            this.alpha = alpha;
+        }
+
+        @Override
+        boolean hasAlpha() {
+            return alpha;
+        }
+
+        @Override
+        void read(int y, int[] row, int offset) {
+            final ByteBuffer buffer = this.buffer;
+            final int opaque = alpha ? 0 : 0xff000000;
+            int p = this.offset + y * scanlineStride;
+            final int end = offset + width;
+            for (int x = offset; x < end; x++, p += 4) {
+                row[x] = buffer.getInt(p) | opaque;
+            }
+        }
+
+        @Override
+        void write(int y, int[] row, int offset) {
+            final ByteBuffer buffer = this.buffer;
+            int p = this.offset + y * scanlineStride;
+            final int end = offset + width;
+            for (int x = offset; x < end; x++, p += 4) {
+                buffer.putInt(p, row[x]);
+            }
+        }
+    }
+
+    /**
+     * Pixels of gray images created by CompactFormats. The green channel is
+     * written.
+     */
+    private static final class Gray extends PixelRows {
+
+        private final byte[] data;
+        private final int offset;
+        private final int scanlineStride;
+        private final int pixelStride;
+
+        Gray(int width, byte[] data, int offset, int scanlineStride, int pixelStride) {
+            super(width, false);
+            this.data = data;
+            this.offset = offset;
+            this.scanlineStride = scanlineStride;
+            this.pixelStride = pixelStride;
+        }
+
+        @Override
+        boolean hasAlpha() {
+            return false;
+        }
+
+        @Override
+        void read(int y, int[] row, int offset) {
+            final byte[] data = this.data;
+            final int end = offset + width;
+            int p = this.offset + y * scanlineStride;
+            for (int x = offset; x < end; x++, p += pixelStride) {
+                row[x] = 0xff000000 | (data[p] & 0xff) * 0x10101;
+            }
+        }
+
+        @Override
+        void write(int y, int[] row, int offset) {
+            final byte[] data = this.data;
+            final int end = offset + width;
+            int p = this.offset + y * scanlineStride;
+            for (int x = offset; x < end; x++, p += pixelStride) {
+                data[p] = (byte) (row[x] >> 8);
+            }
+        }
+    }
+
+    /**
+     * Pixels of red-green images created by CompactFormats. The green and blue
+     * channels are written.
+     */
+    private static final class RedGreen extends PixelRows {
+
+        private final short[] data;
+        private final int offset;
+        private final int scanlineStride;
+        private final int pixelStride;
+
+        RedGreen(int width, short[] data, int offset, int scanlineStride, int pixelStride) {
+            super(width, false);
+            this.data = data;
+            this.offset = offset;
+            this.scanlineStride = scanlineStride;
+            this.pixelStride = pixelStride;
+        }
+
+        @Override
+        boolean hasAlpha() {
+            return false;
+        }
+
+        @Override
+        void read(int y, int[] row, int offset) {
+            final short[] data = this.data;
+            final int end = offset + width;
+            int p = this.offset + y * scanlineStride;
+            for (int x = offset; x < end; x++, p += pixelStride) {
+                final int v = data[p] & 0xffff;
+                row[x] = 0xff000000 | (v >> 8) * 0x10100 | (v & 0xff);
+            }
+        }
+
+        @Override
+        void write(int y, int[] row, int offset) {
+            final short[] data = this.data;
+            final int end = offset + width;
+            int p = this.offset + y * scanlineStride;
+            for (int x = offset; x < end; x++, p += pixelStride) {
+                final int argb = row[x];
+                data[p] = (short) (argb >> 8 & 0xff00 | argb & 0xff);
+            }
+        }
+    }
+
+    /**
+     * Pixels of any other image, converted by the color model of the image.
+     */
+    private static final class Generic extends PixelRows {
+
+        private final BufferedImage image;
+
+        Generic(BufferedImage image) {
+            // getRGB() and setRGB() convert premultiplied samples
+            super(image.getWidth(), false);
+            this.image = image;
+        }
+
+        @Override
+        boolean hasAlpha() {
+            return image.getColorModel().hasAlpha();
+        }
+
+        @Override
+        void read(int y, int[] row, int offset) {
+            image.getRGB(0, y, width, 1, row, offset, width);
+        }
+
+        @Override
+        void write(int y, int[] row, int offset) {
+            image.setRGB(0, y, width, 1, row, offset, width);
+        }
+    }
+}
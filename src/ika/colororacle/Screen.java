@@ -12,9 +12,23 @@ import java.awt.Robot;
 import java.awt.Toolkit;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 final class Screen {
 
+    /**
+     * The name of the system property selecting the transfer curve of the
+     * screens: "srgb" for the exact sRGB curve, "display" for the curves of
+     * the ICC profile of each screen. Otherwise the default curve is used.
+     */
+    static final String CURVE_PROPERTY = "ika.colororacle.curve";
+
+    /**
+     * The value of CURVE_PROPERTY.
+     */
+    private static final String CURVE = System.getProperty(CURVE_PROPERTY);
+
     /**
      * An array with all attached screens.
      */
@@ -50,9 +64,41 @@ final class Screen {
     public BufferedImage screenshotImage = null;
     public GraphicsConfiguration gc = null;
 
+    /**
+     * The transfer curve of this screen, found when the screen is detected,
+     * such that the ICC profile is not read for every simulation.
+     */
+    private final TransferCurve transferCurve;
+
     private Screen(GraphicsConfiguration gc) {
         super();
         this.gc = gc;
+        this.transferCurve = createTransferCurve(gc);
+    }
+
+    /**
+     * Returns the transfer curve of this screen selected by CURVE_PROPERTY.
+     */
+    public TransferCurve getTransferCurve() {
+        return transferCurve;
+    }
+
+    /**
+     * Returns the transfer curve of a screen selected by CURVE_PROPERTY.
+     */
+    private static TransferCurve createTransferCurve(GraphicsConfiguration gc) {
+        if ("srgb".equals(CURVE)) {
+            return TransferCurve.sRGB();
+        }
+        if ("display".equals(CURVE)) {
+            try {
+                return TransferCurve.forConfiguration(gc);
+            } catch (IllegalArgumentException ex) {
+                Logger.getLogger(Screen.class.getName()).log(Level.WARNING,
+                        "Cannot use the transfer curve of the screen", ex);
+            }
+        }
+        return TransferCurve.getDefault();
     }
 
     public Image getSimulationImage() {
@@ -0,0 +1,913 @@
+package ika.colororacle;
+
+import java.awt.RenderingHints;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base class for the filters simulating color-impaired vision. Derived classes
+ * convert single pixels with filterRGB(); this class applies the conversion to
+ * all pixels of an image.
+ *
+ * Large images are split into bands of rows, which are filtered in parallel
+ * on a ForkJoinPool. As each pixel is converted independently of its
+ * neighbours, the result is identical to sequential filtering.
+ *
+ * The alpha of images with transparency is passed through unchanged, and
+ * premultiplied colors are divided by alpha before they are converted. Fully
+ * transparent pixels are copied without being converted.
+ */
+abstract class SimulationFilter implements BufferedImageOp {
+
+    /**
+     * The name of the system property for the number of threads filtering an
+     * image. The default is the number of processors; 1 disables parallel
+     * filtering. The property is read once, when the first image is filtered.
+     */
+    static final String PARALLELISM_PROPERTY = "ika.colororacle.parallelism";
+
+    /**
+     * The name of the system property for the minimum number of pixels of an
+     * image that is filtered in parallel. The property is read once, when the
+     * first image is filtered.
+     */
+    static final String PARALLEL_THRESHOLD_PROPERTY = "ika.colororacle.parallelThreshold";
+
+    /**
+     * Images with fewer pixels are filtered sequentially by default, because
+     * distributing the work costs more than it saves.
+     */
+    private static final int DEFAULT_PARALLEL_THRESHOLD = 512 * 512;
+
+    /**
+     * Each thread filters this many bands on average, such that threads that
+     * finish early can help with the remaining bands.
+     */
+    private static final int BANDS_PER_THREAD = 4;
+
+    /**
+     * Images that are not stored as packed RGB ints are converted in blocks of
+     * rows with about this many pixels.
+     */
+    private static final int BLOCK_SIZE = 1 << 14;
+
+    /**
+     * Rows are compared in blocks of this many pixels.
+     */
+    private static final int COMPARE_BLOCK = 64;
+
+    /**
+     * The color cache has 2^COLOR_CACHE_BITS entries. 4096 entries take 32 KB,
+     * which fit in the first level cache of most processors.
+     */
+    private static final int COLOR_CACHE_BITS = 12;
+
+    /**
+     * The hit rate of the color cache is checked after each chunk of this many
+     * pixels.
+     */
+    private static final int COLOR_CACHE_CHUNK = 4096;
+
+    /**
+     * If a chunk has many lookups and less than one in eight is found in the
+     * color cache, the cache is not used for this many following chunks.
+     */
+    private static final int COLOR_CACHE_BYPASSED_CHUNKS = 15;
+
+    /**
+     * Recently converted colors and their simulated colors, indexed by a hash
+     * of the color.
+     */
+    private static final class ColorCache {
+
+        final int[] keys = new int[1 << COLOR_CACHE_BITS];
+        final int[] values = new int[1 << COLOR_CACHE_BITS];
+
+        /**
+         * The last converted color and its simulated color.
+         */
+        int prevIn;
+        int prevOut;
+
+        /**
+         * Counters for the current call of filter().
+         */
+        int lookups;
+        int misses;
+
+        /**
+         * The filter that computed the cached colors.
+         */
+        SimulationFilter owner;
+
+        /**
+         * Prepares the cache for a call of filter(). The cached colors are
+         * kept if they were computed by the same filter, otherwise all
+         * entries are set to black and its simulated color.
+         */
+        void reset(SimulationFilter filter) {
+            final int black = filter.filterRGB(0);
+            if (owner != filter) {
+                owner = filter;
+                Arrays.fill(keys, 0);
+                Arrays.fill(values, black);
+            }
+            prevIn = 0;
+            prevOut = black;
+            lookups = 0;
+            misses = 0;
+        }
+    }
+
+    /**
+     * The number of color caches of each thread. Each cache belongs to a
+     * filter, so that several filters can take turns without clearing the
+     * caches, as when the user switches between simulation types.
+     */
+    private static final int COLOR_CACHES = 4;
+
+    /**
+     * Each thread has its own color caches, which are reused for all images,
+     * with the most recently used cache first.
+     */
+    private static final ThreadLocal<ColorCache[]> COLOR_CACHE = new ThreadLocal<ColorCache[]>() {
+
+        @Override
+        protected ColorCache[] initialValue() {
+            return new ColorCache[COLOR_CACHES];
+        }
+    };
+
+    /**
+     * Returns the color cache of the current thread for this filter. If no
+     * cache belongs to this filter, the least recently used cache is taken.
+     */
+    private ColorCache getColorCache() {
+        final ColorCache[] caches = COLOR_CACHE.get();
+        int i = 0;
+        while (i < caches.length - 1 && caches[i] != null && caches[i].owner != this) {
+            ++i;
+        }
+        ColorCache cache = caches[i];
+        if (cache == null) {
+            cache = new ColorCache();
+        }
+        System.arraycopy(caches, 0, caches, 1, i);
+        caches[0] = cache;
+        return cache;
+    }
+
+    /**
+     * Discards the colors this filter cached on the current thread, such that
+     * the next call of filter() on this thread starts with an empty cache.
+     */
+    void clearColorCache() {
+        for (ColorCache cache : COLOR_CACHE.get()) {
+            if (cache != null && cache.owner == this) {
+                cache.owner = null;
+            }
+        }
+    }
+
+    /**
+     * Counters for the color cache.
+     */
+    private static final AtomicLong cacheHits = new AtomicLong();
+    private static final AtomicLong cacheMisses = new AtomicLong();
+
+    /**
+     * Counters for rows copied from the row above and rows with a single
+     * color.
+     */
+    private static final AtomicLong reusedRows = new AtomicLong();
+    private static final AtomicLong uniformRows = new AtomicLong();
+
+    /**
+     * Converts a single pixel. The conversion must only depend on the passed
+     * color, as the result may be stored in a lookup table.
+     *
+     * @param rgb The color in 0xRRGGBB format. The alpha bits are ignored.
+     * @return The simulated opaque color in 0xffRRGGBB format.
+     */
+    abstract int filterRGB(int rgb);
+
+    /**
+     * Converts a single pixel with 16-bit samples. The arithmetic filters
+     * override this method without reducing the precision; by default, the
+     * 8 most significant bits of each sample are converted with filterRGB().
+     *
+     * @param rgb The color in 0xRRRRGGGGBBBB format.
+     * @return The simulated color in 0xRRRRGGGGBBBB format.
+     */
+    long filterRGB48(long rgb) {
+        final int out = filterRGB((int) (rgb >>> 24 & 0xff0000
+                | rgb >>> 16 & 0xff00 | rgb >>> 8 & 0xff));
+        // 0xff * 0x101 = 0xffff
+        return (long) ((out >> 16 & 0xff) * 0x101) << 32
+                | (long) ((out >> 8 & 0xff) * 0x101) << 16
+                | (out & 0xff) * 0x101;
+    }
+
+    /**
+     * Filters an image.
+     *
+     * @param src The source image.
+     * @param dst The destination image with the same size as the source image,
+     * or null to create a new image. Can be the source image or a sub-image
+     * of another image. Destination images with an indexed color model are
+     * not supported, except for the compact images of CompactFormats.
+     * @return The filtered image.
+     * @throws IllegalArgumentException If the destination image cannot be
+     * used.
+     */
+    @Override
+    public BufferedImage filter(BufferedImage src, BufferedImage dst) {
+        if (dst != null) {
+            checkDestination(src, dst);
+        }
+        if (src.getColorModel() instanceof IndexColorModel) {
+            return filterIndexed(src, dst);
+        }
+        if (dst == null) {
+            dst = createCompatibleDestImage(src, null);
+        }
+
+        filter(createRows(src, dst), src.getWidth(), src.getHeight());
+        return dst;
+    }
+
+    /**
+     * Filters all rows of an image. Large images are split into bands, which
+     * are filtered in parallel.
+     *
+     * @param rows The rows to filter.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     */
+    private static void filter(Rows rows, int width, int height) {
+        final int parallelism = Parallel.PARALLELISM;
+        if (parallelism > 1 && (long) width * height >= Parallel.THRESHOLD) {
+            int bandHeight = (height + parallelism * BANDS_PER_THREAD - 1)
+                    / (parallelism * BANDS_PER_THREAD);
+            Parallel.POOL.invoke(new BandTask(rows, 0, height, Math.max(1, bandHeight)));
+        } else {
+            rows.filter(0, height);
+        }
+    }
+
+    /**
+     * Throws an IllegalArgumentException if a source image cannot be filtered
+     * into a destination image. The images must have the same size, and if
+     * they share a data buffer, they must cover the same pixels, as pixels
+     * could otherwise be overwritten before they are read.
+     */
+    private static void checkDestination(BufferedImage src, BufferedImage dst) {
+        if (src.getWidth() != dst.getWidth() || src.getHeight() != dst.getHeight()) {
+            throw new IllegalArgumentException("The destination image has "
+                    + dst.getWidth() + "x" + dst.getHeight()
+                    + " pixels instead of " + src.getWidth() + "x" + src.getHeight());
+        }
+        final ColorModel dstCM = dst.getColorModel();
+        if (dstCM instanceof IndexColorModel
+                && !CompactFormats.isGray(dstCM) && !CompactFormats.isRedGreen(dstCM)) {
+            throw new IllegalArgumentException(
+                    "The destination image has an indexed color model");
+        }
+        final Raster in = src.getRaster();
+        final Raster out = dst.getRaster();
+        if (in.getDataBuffer() == out.getDataBuffer()
+                && (in.getSampleModelTranslateX() != out.getSampleModelTranslateX()
+                || in.getSampleModelTranslateY() != out.getSampleModelTranslateY()
+                || !in.getSampleModel().equals(out.getSampleModel()))) {
+            throw new IllegalArgumentException("The source and destination "
+                    + "images share a data buffer, but not the same pixels");
+        }
+    }
+
+    /**
+     * Filters a range of rows of an image.
+     */
+    private interface Rows {
+
+        void filter(int firstRow, int endRow);
+    }
+
+    /**
+     * Filters pixels packed in int arrays in intRGB or intARGB format. Large
+     * images are split into bands, which are filtered in parallel. The
+     * arrays can be the same if the pixels have the same offset and stride.
+     *
+     * @param src The source pixels.
+     * @param srcOffset The position of the first source pixel.
+     * @param srcScanlineStride The distance between source rows.
+     * @param dst The destination pixels.
+     * @param dstOffset The position of the first destination pixel.
+     * @param dstScanlineStride The distance between destination rows.
+     * @param width The number of pixels in a row.
+     * @param height The number of rows.
+     * @param alpha True for intARGB pixels.
+     */
+    void filter(int[] src, int srcOffset, int srcScanlineStride,
+            int[] dst, int dstOffset, int dstScanlineStride,
+            int width, int height, boolean alpha) {
+        if (!alpha && srcOffset == dstOffset && srcScanlineStride == dstScanlineStride) {
+            filter(createRows(src, dst, srcOffset, srcScanlineStride, width), width, height);
+        } else {
+            filter(PixelRows.create(src, srcOffset, srcScanlineStride, width, alpha),
+                    PixelRows.create(dst, dstOffset, dstScanlineStride, width, alpha),
+                    height);
+        }
+    }
+
+    /**
+     * Filters rows of pixels. Large images are split into bands, which are
+     * filtered in parallel.
+     *
+     * @param in The source pixels.
+     * @param out The destination pixels with the same width.
+     * @param height The number of rows.
+     */
+    void filter(PixelRows in, PixelRows out, int height) {
+        filter(createRows(in, out), in.width, height);
+    }
+
+    /**
+     * Returns the Rows filtering the pixels of an image. Images with 16-bit
+     * samples are filtered with UShortRows, opaque images with packed RGB
+     * ints are filtered in their data buffers, and other images are filtered
+     * in blocks of rows with PixelRows.
+     */
+    private Rows createRows(BufferedImage src, BufferedImage dst) {
+        final UShortRows in16 = UShortRows.create(src);
+        final UShortRows out16 = UShortRows.create(dst);
+        if (in16 != null && out16 != null) {
+            return new Rows() {
+
+                @Override
+                public void filter(int firstRow, int endRow) {
+                    in16.filter(SimulationFilter.this, out16, firstRow, endRow);
+                }
+            };
+        }
+        if (isIntRGB(src) && isIntRGB(dst) && !src.getColorModel().hasAlpha()) {
+            final int offset = getDataOffset(src);
+            final int scanlineStride = getScanlineStride(src);
+            // sub-images share the buffer of their parent image, and are
+            // filtered in the buffer if the destination has the same layout
+            if (offset == getDataOffset(dst) && scanlineStride == getScanlineStride(dst)) {
+                return createRows(
+                        ((DataBufferInt) src.getRaster().getDataBuffer()).getData(),
+                        ((DataBufferInt) dst.getRaster().getDataBuffer()).getData(),
+                        offset, scanlineStride, src.getWidth());
+            }
+        }
+        return createRows(PixelRows.create(src), PixelRows.create(dst));
+    }
+
+    /**
+     * Returns the Rows filtering opaque pixels packed in int arrays with the
+     * same layout.
+     */
+    private Rows createRows(final int[] in, final int[] out, final int offset,
+            final int scanlineStride, final int width) {
+        return new Rows() {
+
+            @Override
+            public void filter(int firstRow, int endRow) {
+                filterRows(in, out, offset, scanlineStride, width, firstRow, endRow);
+            }
+        };
+    }
+
+    /**
+     * Returns the Rows filtering pixels in blocks of rows. The blocks are
+     * copied to int arrays and filtered like images with packed RGB ints.
+     * The alpha is only kept if both the source and the destination have
+     * alpha; otherwise all pixels are converted, including fully transparent
+     * ones, which become visible in an opaque destination.
+     */
+    private Rows createRows(final PixelRows in, final PixelRows out) {
+        final int width = in.width;
+        final boolean alpha = in.hasAlpha() && out.hasAlpha();
+        final int blockHeight = Math.max(1, BLOCK_SIZE / Math.max(1, width));
+        return new Rows() {
+
+            @Override
+            public void filter(int firstRow, int endRow) {
+                final int rows = Math.min(blockHeight, endRow - firstRow);
+                final int[] inBlock = new int[rows * width];
+                final int[] outBlock = new int[rows * width];
+                final int[] colorBlock = alpha ? new int[rows * width] : inBlock;
+                for (int y = firstRow; y < endRow; y += rows) {
+                    final int n = Math.min(rows, endRow - y);
+                    for (int i = 0; i < n; i++) {
+                        in.read(y + i, inBlock, i * width);
+                    }
+                    if (!alpha) {
+                        filterRows(inBlock, outBlock, 0, width, width, 0, n);
+                    } else if (extractColors(inBlock, colorBlock, n * width)) {
+                        filterRows(colorBlock, outBlock, 0, width, width, 0, n);
+                        restoreAlpha(inBlock, outBlock, n * width);
+                    } else {
+                        // all pixels are fully transparent
+                        System.arraycopy(inBlock, 0, outBlock, 0, n * width);
+                    }
+                    for (int i = 0; i < n; i++) {
+                        out.write(y + i, outBlock, i * width);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Copies the colors of pixels to an array for filtering. The colors are
+     * made opaque, such that pixels with the same color and different alpha
+     * are converted once. Fully transparent pixels take the color of the
+     * pixel before them, so that they are never converted, and fully
+     * transparent rows are filled with a single color.
+     *
+     * @param argb The pixels in 0xAARRGGBB format.
+     * @param colors Receives the colors to filter.
+     * @param size The number of pixels.
+     * @return False if all pixels are fully transparent.
+     */
+    private static boolean extractColors(int[] argb, int[] colors, int size) {
+        int color = 0xff000000;
+        int visible = 0;
+        for (int i = 0; i < size; i++) {
+            final int alpha = argb[i] >>> 24;
+            if (alpha != 0) {
+                color = argb[i] | 0xff000000;
+            }
+            colors[i] = color;
+            visible |= alpha;
+        }
+        return visible != 0;
+    }
+
+    /**
+     * Combines filtered colors with the alpha of the source pixels. Fully
+     * transparent pixels are copied from the source.
+     *
+     * @param argb The source pixels in 0xAARRGGBB format.
+     * @param out The filtered colors, replaced by the destination pixels.
+     * @param size The number of pixels.
+     */
+    private static void restoreAlpha(int[] argb, int[] out, int size) {
+        for (int i = 0; i < size; i++) {
+            final int alpha = argb[i] & 0xff000000;
+            out[i] = alpha == 0 ? argb[i] : out[i] & 0xffffff | alpha;
+        }
+    }
+
+    /**
+     * Returns true if an image stores 8-bit RGB samples in ints, with red in
+     * bits 16-23, green in bits 8-15 and blue in bits 0-7, such as
+     * TYPE_INT_RGB and TYPE_INT_ARGB.
+     */
+    private static boolean isIntRGB(BufferedImage image) {
+        if (!(image.getRaster().getDataBuffer() instanceof DataBufferInt)
+                || !(image.getRaster().getSampleModel() instanceof SinglePixelPackedSampleModel)
+                || !(image.getColorModel() instanceof DirectColorModel)) {
+            return false;
+        }
+        DirectColorModel cm = (DirectColorModel) image.getColorModel();
+        return cm.getRedMask() == 0xff0000
+                && cm.getGreenMask() == 0xff00
+                && cm.getBlueMask() == 0xff;
+    }
+
+    /**
+     * Returns the position of the first pixel of an image with packed RGB
+     * ints in its data array. Sub-images start inside the array of their
+     * parent image.
+     */
+    private static int getDataOffset(BufferedImage image) {
+        final Raster raster = image.getRaster();
+        final SinglePixelPackedSampleModel sm
+                = (SinglePixelPackedSampleModel) raster.getSampleModel();
+        return raster.getDataBuffer().getOffset()
+                + sm.getOffset(-raster.getSampleModelTranslateX(),
+                        -raster.getSampleModelTranslateY());
+    }
+
+    /**
+     * Returns the distance between the rows of an image with packed RGB ints
+     * in its data array.
+     */
+    private static int getScanlineStride(BufferedImage image) {
+        return ((SinglePixelPackedSampleModel) image.getRaster().getSampleModel())
+                .getScanlineStride();
+    }
+
+    /**
+     * Filters an image with an indexed color model by converting the colors of
+     * the palette. If no destination is passed, the new image shares the
+     * raster with the source image, and no pixels are converted or copied.
+     *
+     * @param src The source image with an IndexColorModel.
+     * @param dst The destination image or null.
+     * @return The filtered image.
+     */
+    private BufferedImage filterIndexed(BufferedImage src, BufferedImage dst) {
+        IndexColorModel cm = (IndexColorModel) src.getColorModel();
+        final int mapSize = cm.getMapSize();
+        int[] palette = new int[mapSize];
+        cm.getRGBs(palette);
+        for (int i = 0; i < mapSize; i++) {
+            // keep the alpha of the palette entry
+            palette[i] = filterRGB(palette[i]) & 0xffffff | palette[i] & 0xff000000;
+        }
+
+        if (dst == null) {
+            IndexColorModel simulatedCM = new IndexColorModel(cm.getPixelSize(),
+                    mapSize, palette, 0, cm.hasAlpha(), cm.getTransparentPixel(),
+                    cm.getTransferType());
+            return new BufferedImage(simulatedCM, src.getRaster(),
+                    src.isAlphaPremultiplied(), null);
+        }
+
+        // convert the indices of each row with the simulated palette
+        final int width = src.getWidth();
+        final int height = src.getHeight();
+        Raster raster = src.getRaster();
+        // indices beyond the palette are transparent black, as in
+        // IndexColorModel
+        palette = Arrays.copyOf(palette,
+                Math.max(mapSize, 1 << raster.getSampleModel().getSampleSize(0)));
+        int[] indices = new int[width];
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            raster.getSamples(0, y, width, 1, 0, indices);
+            for (int x = 0; x < width; x++) {
+                row[x] = palette[indices[x]];
+            }
+            dst.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return dst;
+    }
+
+    /**
+     * Filters a band of rows. Rows that are identical to the row above are
+     * copied from the filtered row above, and rows with a single color are
+     * filled with the simulated color. Both are common in screenshots, for
+     * example in window backgrounds, document margins and water areas on maps.
+     * Rows are not copied when the image is filtered in place, as the row
+     * above has been overwritten.
+     *
+     * @param inData The source pixels.
+     * @param outData The destination pixels.
+     * @param offset The index of the first pixel of the image in inData and
+     * outData.
+     * @param scanlineStride The distance between two rows in inData and
+     * outData.
+     * @param width The number of pixels in a row.
+     * @param firstRow The first row to filter.
+     * @param endRow The row after the last row to filter.
+     */
+    void filterRows(int[] inData, int[] outData, int offset, int scanlineStride,
+            int width, int firstRow, int endRow) {
+        // consecutive rows that have to be converted pixel by pixel are
+        // filtered together if there are no gaps between them
+        final boolean contiguous = scanlineStride == width;
+        final boolean inPlace = inData == outData;
+        int pendingRow = firstRow;
+        int reused = 0;
+        int uniform = 0;
+        for (int row = firstRow; row < endRow; row++) {
+            final int start = offset + row * scanlineStride;
+            final int end = start + width;
+            // filling is faster than copying, so uniform rows are tested
+            // first
+            if (isUniformRow(inData, start, end)) {
+                filter(inData, outData, offset + pendingRow * scanlineStride, start);
+                pendingRow = row + 1;
+                Arrays.fill(outData, start, end, filterRGB(inData[start]));
+                ++uniform;
+            } else if (!inPlace && row > firstRow
+                    && equalRows(inData, start - scanlineStride, start, width)) {
+                filter(inData, outData, offset + pendingRow * scanlineStride, start);
+                pendingRow = row + 1;
+                System.arraycopy(outData, start - scanlineStride, outData, start, width);
+                ++reused;
+            } else if (!contiguous) {
+                filter(inData, outData, start, end);
+                pendingRow = row + 1;
+            }
+        }
+        filter(inData, outData, offset + pendingRow * scanlineStride,
+                offset + endRow * scanlineStride);
+        reusedRows.addAndGet(reused);
+        uniformRows.addAndGet(uniform);
+    }
+
+    /**
+     * Returns true if two rows contain the same pixels. The rows are compared
+     * in blocks without branches inside a block, which the virtual machine
+     * can compile to vector instructions.
+     */
+    private static boolean equalRows(int[] data, int row1, int row2, int width) {
+        int i = 0;
+        for (; i + COMPARE_BLOCK <= width; i += COMPARE_BLOCK) {
+            int diff = 0;
+            for (int j = i; j < i + COMPARE_BLOCK; j++) {
+                diff |= data[row1 + j] ^ data[row2 + j];
+            }
+            if (diff != 0) {
+                return false;
+            }
+        }
+        for (; i < width; i++) {
+            if (data[row1 + i] != data[row2 + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if all pixels in a range have the same value.
+     */
+    private static boolean isUniformRow(int[] data, int from, int to) {
+        final int first = data[from];
+        int i = from;
+        for (; i + COMPARE_BLOCK <= to; i += COMPARE_BLOCK) {
+            int diff = 0;
+            for (int j = i; j < i + COMPARE_BLOCK; j++) {
+                diff |= data[j] ^ first;
+            }
+            if (diff != 0) {
+                return false;
+            }
+        }
+        for (; i < to; i++) {
+            if (data[i] != first) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Filters a range of pixels. Pixels with the same color as their left
+     * neighbour are not converted again. Other pixels are looked up in a
+     * small cache of recently converted colors, which helps with user
+     * interfaces and maps, where text, anti-aliased edges and backgrounds
+     * alternate between a few colors. Where most colors are not found in the
+     * cache, such as in photos, the cache is bypassed for a while.
+     *
+     * @param inData The source pixels.
+     * @param outData The destination pixels.
+     * @param from The index of the first pixel to filter.
+     * @param to The index after the last pixel to filter.
+     */
+    void filter(int[] inData, int[] outData, int from, int to) {
+        // the first pixel and all empty entries of the cache are converted
+        // like any other pixel, so that the result does not depend on the
+        // position of a pixel in the image.
+        if (from >= to) {
+            return;
+        }
+        final ColorCache cache = getColorCache();
+        cache.reset(this);
+        int bypassedChunks = 0;
+        for (int i = from; i < to; i += COLOR_CACHE_CHUNK) {
+            final int end = Math.min(to, i + COLOR_CACHE_CHUNK);
+            if (bypassedChunks > 0) {
+                // the cache does not pay off for photos and gradients
+                --bypassedChunks;
+                filterUncached(inData, outData, i, end, cache);
+            } else {
+                final int lookups = cache.lookups;
+                final int misses = cache.misses;
+                filterCached(inData, outData, i, end, cache);
+                final int chunkLookups = cache.lookups - lookups;
+                final int chunkMisses = cache.misses - misses;
+                if (chunkMisses > COLOR_CACHE_CHUNK / 4
+                        && chunkMisses * 8 > chunkLookups * 7) {
+                    bypassedChunks = COLOR_CACHE_BYPASSED_CHUNKS;
+                }
+            }
+        }
+        cacheHits.addAndGet(cache.lookups - cache.misses);
+        cacheMisses.addAndGet(cache.misses);
+    }
+
+    /**
+     * Filters a range of pixels, looking up colors in the color cache.
+     */
+    private void filterCached(int[] inData, int[] outData, int from, int to,
+            ColorCache cache) {
+        final int[] keys = cache.keys;
+        final int[] values = cache.values;
+        int prevIn = cache.prevIn;
+        int prevOut = cache.prevOut;
+        int lookups = 0;
+        int misses = 0;
+        for (int i = from; i < to; i++) {
+            final int in = inData[i];
+            if (in != prevIn) {
+                prevIn = in;
+                // the cache is direct-mapped: each color can only be stored
+                // at the position given by its hash.
+                final int slot = (in * 0x9e3779b1) >>> (32 - COLOR_CACHE_BITS);
+                if (keys[slot] == in) {
+                    prevOut = values[slot];
+                } else {
+                    prevOut = filterRGB(in);
+                    keys[slot] = in;
+                    values[slot] = prevOut;
+                    ++misses;
+                }
+                ++lookups;
+            }
+            outData[i] = prevOut;
+        }
+        cache.prevIn = prevIn;
+        cache.prevOut = prevOut;
+        cache.lookups += lookups;
+        cache.misses += misses;
+    }
+
+    /**
+     * Filters a range of pixels without the color cache.
+     */
+    private void filterUncached(int[] inData, int[] outData, int from, int to,
+            ColorCache cache) {
+        int prevIn = cache.prevIn;
+        int prevOut = cache.prevOut;
+        for (int i = from; i < to; i++) {
+            final int in = inData[i];
+            if (in != prevIn) {
+                prevIn = in;
+                prevOut = filterRGB(in);
+            }
+            outData[i] = prevOut;
+        }
+        cache.prevIn = prevIn;
+        cache.prevOut = prevOut;
+    }
+
+    /**
+     * Returns the number of pixels that were found in the color cache so far.
+     * Pixels with the same color as their left neighbour are not counted.
+     */
+    static long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * Returns the number of pixels that were not found in the color cache
+     * and were converted so far.
+     */
+    static long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    /**
+     * Returns the number of rows that were copied from the row above so far.
+     */
+    static long getReusedRows() {
+        return reusedRows.get();
+    }
+
+    /**
+     * Returns the number of rows with a single color that were filled so far.
+     */
+    static long getUniformRows() {
+        return uniformRows.get();
+    }
+
+    /**
+     * Returns the number of threads for filtering large images.
+     */
+    static int getParallelism() {
+        return Parallel.PARALLELISM;
+    }
+
+    /**
+     * Returns the minimum number of pixels of an image that is filtered in
+     * parallel.
+     */
+    static int getParallelThreshold() {
+        return Parallel.THRESHOLD;
+    }
+
+    /**
+     * The configuration and the pool of threads for parallel filtering. The
+     * class is initialized when an image is first filtered, which reads the
+     * system properties once. The pool is never shut down, such that threads
+     * filtering at the same time cannot lose it.
+     */
+    private static final class Parallel {
+
+        static final int PARALLELISM = Math.max(1, Integer.getInteger(
+                PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors()));
+
+        static final int THRESHOLD = Integer.getInteger(
+                PARALLEL_THRESHOLD_PROPERTY, DEFAULT_PARALLEL_THRESHOLD);
+
+        /**
+         * The pool, or null if images are filtered sequentially.
+         */
+        static final ForkJoinPool POOL
+                = PARALLELISM > 1 ? new ForkJoinPool(PARALLELISM) : null;
+    }
+
+    /**
+     * A task filtering a band of rows. Bands higher than the maximum band
+     * height are split in two halves.
+     */
+    private static final class BandTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Rows rows;
+        private final int firstRow;
+        private final int endRow;
+        private final int bandHeight;
+
+        BandTask(Rows rows, int firstRow, int endRow, int bandHeight) {
+            this.rows = rows;
+            this.firstRow = firstRow;
+            this.endRow = endRow;
+            this.bandHeight = bandHeight;
+        }
+
+        @Override
+        protected void compute() {
+            if (endRow - firstRow <= bandHeight) {
+                rows.filter(firstRow, endRow);
+            } else {
+                final int middleRow = (firstRow + endRow) >>> 1;
+                invokeAll(new BandTask(rows, firstRow, middleRow, bandHeight),
+                        new BandTask(rows, middleRow, endRow, bandHeight));
+            }
+        }
+    }
+
+    /**
+     * Returns an image in one of the compact formats of CompactFormats that
+     * can hold the result of filtering an image, or null if the filter has no
+     * compact format for the image. Compact formats are only used for opaque
+     * images with 8-bit samples that do not have an indexed color model.
+     */
+    BufferedImage createCompactDestImage(BufferedImage src) {
+        return null;
+    }
+
+    /**
+     * Returns true if an image can be filtered into a compact image.
+     */
+    static boolean isCompactFormatSupported(BufferedImage src) {
+        ColorModel cm = src.getColorModel();
+        return !cm.hasAlpha() && !(cm instanceof IndexColorModel)
+                && UShortRows.create(src) == null;
+    }
+
+    @Override
+    public Rectangle2D getBounds2D(BufferedImage src) {
+        return src.getRaster().getBounds();
+    }
+
+    @Override
+    public BufferedImage createCompatibleDestImage(BufferedImage src,
+            ColorModel destCM) {
+        if (destCM == null) {
+            destCM = src.getColorModel();
+        }
+        int width = src.getWidth();
+        int height = src.getHeight();
+        BufferedImage image = new BufferedImage(destCM,
+                destCM.createCompatibleWritableRaster(width, height),
+                destCM.isAlphaPremultiplied(), null);
+        return image;
+    }
+
+    @Override
+    public Point2D getPoint2D(Point2D srcPt, Point2D dstPt) {
+        if (dstPt == null) {
+            dstPt = new Point2D.Float();
+        }
+        dstPt.setLocation(srcPt.getX(), srcPt.getY());
+        return dstPt;
+    }
+
+    @Override
+    public RenderingHints getRenderingHints() {
+        return null;
+    }
+}
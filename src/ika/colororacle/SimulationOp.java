@@ -0,0 +1,435 @@
+package ika.colororacle;
+
+import ika.colororacle.ColorOracle.Simulation;
+import java.awt.RenderingHints;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The image operation for a simulation type, returned by Simulator.forType().
+ * An operation selects the fastest filter for each image, see KernelSelector.
+ *
+ * Besides BufferedImages, an operation filters raw pixels in int arrays and
+ * ByteBuffers, such as the frames of native renderers, without copying them
+ * to an image. Off-heap memory segments can be passed as ByteBuffers with
+ * MemorySegment.asByteBuffer(). BufferedImages are filtered by the same code,
+ * with their data buffers accessed in place where possible.
+ *
+ * Operations are immutable apart from the lookup table, which is added once
+ * it has been computed in the background, and can be used by any number of
+ * threads at the same time. The filters keep their caches in thread-local
+ * storage.
+ *
+ * At log level FINE, the statistics of the filters are logged for each
+ * image, such as the hit rate of the color cache.
+ */
+public final class SimulationOp implements BufferedImageOp {
+
+    /**
+     * The logger for the statistics, which is looked up once, as looking up a
+     * logger locks the LogManager.
+     */
+    private static final Logger LOGGER = Logger.getLogger(SimulationOp.class.getName());
+
+    /**
+     * The simulation type.
+     */
+    private final Simulation type;
+
+    /**
+     * The name of the operation for log messages.
+     */
+    private final String name;
+
+    /**
+     * The arithmetic filter for the simulation type.
+     */
+    private final SimulationFilter filter;
+
+    /**
+     * The kind of lookup tables used, read from the system properties when
+     * the operation is created, such that filtering does not read them. The
+     * tables are computed once for each simulation type, and only for the
+     * standard filters; none for other filters and for normal vision.
+     */
+    private final LookupTable.Mode mode;
+
+    /**
+     * The kernels selected for this operation.
+     */
+    private final KernelSelector.Selection selection;
+
+    /**
+     * The exact filters without a lookup table.
+     */
+    private final KernelSelector.Candidates candidates;
+
+    /**
+     * The exact filters including the lookup table, or null while the table
+     * is not available.
+     */
+    private volatile KernelSelector.Candidates candidatesWithTable = null;
+
+    /**
+     * The filter interpolating in the lattice table, or null if it has not
+     * been requested yet. The lattice size is read when the first image is
+     * filtered.
+     */
+    private volatile SimulationFilter latticeFilter = null;
+
+    /**
+     * Creates an operation with the standard filter of a simulation type.
+     *
+     * @param type The simulation type.
+     * @param filter The arithmetic filter for the simulation type.
+     */
+    SimulationOp(Simulation type, SimulationFilter filter) {
+        this(type, filter, type.name(), true);
+    }
+
+    /**
+     * Creates an operation.
+     *
+     * @param type The simulation type.
+     * @param filter The arithmetic filter.
+     * @param name The name of the operation for log messages.
+     * @param tables True if the filter is the standard filter of the
+     * simulation type, such that the lookup tables of the type can be used.
+     */
+    SimulationOp(Simulation type, SimulationFilter filter, String name, boolean tables) {
+        this.type = type;
+        this.filter = filter;
+        this.name = name;
+        if (!tables || type == Simulation.normal) {
+            mode = LookupTable.Mode.none;
+        } else if (KernelSelector.getRequestedKernel() == KernelSelector.Kernel.lattice) {
+            mode = LookupTable.Mode.lattice;
+        } else {
+            mode = LookupTable.getMode();
+        }
+        selection = new KernelSelector.Selection(name);
+        candidates = KernelSelector.Candidates.create(filter, VectorSupport.vectorize(filter));
+    }
+
+    /**
+     * Returns the simulation type.
+     */
+    Simulation getType() {
+        return type;
+    }
+
+    /**
+     * Returns the arithmetic filter.
+     */
+    SimulationFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Returns the kernel used for the last image, or null if no image has been
+     * filtered yet. An operation using a lattice table, which is decided when
+     * the operation is created, always returns Kernel.lattice.
+     */
+    KernelSelector.Kernel getLastKernel() {
+        if (mode == LookupTable.Mode.lattice) {
+            return KernelSelector.Kernel.lattice;
+        }
+        return selection.getLastKernel();
+    }
+
+    /**
+     * Starts computing the lookup table in the background if lookup tables
+     * are used and the table is not available yet.
+     */
+    void prepareTables() {
+        if (mode == LookupTable.Mode.full) {
+            LookupTable.get(type, filter);
+        }
+    }
+
+    /**
+     * Returns the exact filters that are currently available. Starts
+     * computing the lookup table in the background if necessary.
+     */
+    private KernelSelector.Candidates getCandidates() {
+        if (mode != LookupTable.Mode.full) {
+            return candidates;
+        }
+        KernelSelector.Candidates withTable = candidatesWithTable;
+        if (withTable == null) {
+            LookupTable table = LookupTable.get(type, filter);
+            if (table == null) {
+                return candidates;
+            }
+            // several threads may do this at the same time, which is harmless
+            withTable = candidates.with(KernelSelector.Kernel.table, table.createFilter());
+            candidatesWithTable = withTable;
+        }
+        return withTable;
+    }
+
+    @Override
+    public BufferedImage filter(BufferedImage src, BufferedImage dst) {
+        BufferedImageOp op;
+        if (src.getColorModel() instanceof IndexColorModel) {
+            // only the palette is converted
+            op = filter;
+        } else if (UShortRows.create(src) != null) {
+            // the lookup tables and vector filters have 8-bit samples
+            op = filter;
+        } else {
+            op = selectFilter(src.getWidth(), src.getHeight());
+            if (op == null) {
+                op = calibrate(PixelRows.create(src), src.getHeight());
+            }
+        }
+        final long[] statistics = readStatistics();
+        dst = op.filter(src, dst);
+        logStatistics(statistics, src.getWidth(), src.getHeight());
+        return dst;
+    }
+
+    /**
+     * Filters pixels packed in int arrays. The arrays can be the same if the
+     * source and destination pixels have the same offset and stride.
+     *
+     * @param src The source pixels.
+     * @param srcOffset The position of the first source pixel in src.
+     * @param srcScanlineStride The distance between source rows in ints.
+     * @param dst The destination pixels.
+     * @param dstOffset The position of the first destination pixel in dst.
+     * @param dstScanlineStride The distance between destination rows in ints.
+     * @param width The number of pixels in a row.
+     * @param height The number of rows.
+     * @param format PixelFormat.intRGB or PixelFormat.intARGB.
+     * @throws IllegalArgumentException If the format is not packed, or the
+     * pixels are outside of the arrays, or the arrays are the same but the
+     * layouts differ.
+     */
+    public void filter(int[] src, int srcOffset, int srcScanlineStride,
+            int[] dst, int dstOffset, int dstScanlineStride,
+            int width, int height, PixelFormat format) {
+        if (!format.isPacked()) {
+            throw new IllegalArgumentException("Pixels in int arrays must be "
+                    + "in a packed format, not " + format);
+        }
+        checkLayout("source", src.length, srcOffset, srcScanlineStride, 1, width, height);
+        checkLayout("destination", dst.length, dstOffset, dstScanlineStride, 1, width, height);
+        if (src == dst && (srcOffset != dstOffset || srcScanlineStride != dstScanlineStride)) {
+            throw new IllegalArgumentException("The source and destination "
+                    + "share an array, but not the same pixels");
+        }
+        if (width == 0 || height == 0) {
+            return;
+        }
+        final boolean alpha = format.hasAlpha();
+        SimulationFilter f = selectFilter(width, height);
+        if (f == null) {
+            f = calibrate(PixelRows.create(src, srcOffset, srcScanlineStride, width, alpha), height);
+        }
+        final long[] statistics = readStatistics();
+        f.filter(src, srcOffset, srcScanlineStride, dst, dstOffset,
+                dstScanlineStride, width, height, alpha);
+        logStatistics(statistics, width, height);
+    }
+
+    /**
+     * Filters pixels in ByteBuffers, which can be direct buffers. The
+     * positions and limits of the buffers are ignored and not changed. The
+     * buffers can be the same if the source and destination pixels have the
+     * same offset and stride; other buffers must not share memory.
+     *
+     * @param src The source pixels.
+     * @param srcOffset The position of the first source pixel in bytes.
+     * @param srcScanlineStride The distance between source rows in bytes.
+     * @param dst The destination pixels.
+     * @param dstOffset The position of the first destination pixel in bytes.
+     * @param dstScanlineStride The distance between destination rows in
+     * bytes.
+     * @param width The number of pixels in a row.
+     * @param height The number of rows.
+     * @param format The layout of the source and destination pixels.
+     * @throws IllegalArgumentException If the destination is read-only, the
+     * pixels are outside of the buffers, or the buffers are the same but the
+     * layouts differ.
+     */
+    public void filter(ByteBuffer src, int srcOffset, int srcScanlineStride,
+            ByteBuffer dst, int dstOffset, int dstScanlineStride,
+            int width, int height, PixelFormat format) {
+        if (dst.isReadOnly()) {
+            throw new IllegalArgumentException("The destination buffer is read-only");
+        }
+        final int pixelSize = format.getBytesPerPixel();
+        checkLayout("source", src.capacity(), srcOffset, srcScanlineStride,
+                pixelSize, width, height);
+        checkLayout("destination", dst.capacity(), dstOffset, dstScanlineStride,
+                pixelSize, width, height);
+        if (src == dst && (srcOffset != dstOffset || srcScanlineStride != dstScanlineStride)) {
+            throw new IllegalArgumentException("The source and destination "
+                    + "share a buffer, but not the same pixels");
+        }
+        if (width == 0 || height == 0) {
+            return;
+        }
+        // the rows are needed for filtering, and also provide the sample
+        final PixelRows in = PixelRows.create(src, srcOffset, srcScanlineStride, width, format);
+        final PixelRows out = PixelRows.create(dst, dstOffset, dstScanlineStride, width, format);
+        SimulationFilter f = selectFilter(width, height);
+        if (f == null) {
+            f = calibrate(in, height);
+        }
+        final long[] statistics = readStatistics();
+        f.filter(in, out, height);
+        logStatistics(statistics, width, height);
+    }
+
+    /**
+     * Returns the counters of the filters before an image is filtered, or
+     * null if the statistics are not logged.
+     */
+    private static long[] readStatistics() {
+        if (!LOGGER.isLoggable(Level.FINE)) {
+            return null;
+        }
+        return new long[]{SimulationFilter.getCacheHits(), SimulationFilter.getCacheMisses(),
+            SimulationFilter.getReusedRows(), SimulationFilter.getUniformRows(),
+            DistinctColorFilter.getPixels(), DistinctColorFilter.getDistinctColors(),
+            DistinctColorFilter.getBailouts()};
+    }
+
+    /**
+     * Logs how the counters of the filters changed while an image was
+     * filtered. Images filtered at the same time on other threads are
+     * included.
+     *
+     * @param before The counters returned by readStatistics() before the
+     * image was filtered, or null if the statistics are not logged.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     */
+    private void logStatistics(long[] before, int width, int height) {
+        if (before == null) {
+            return;
+        }
+        final long hits = SimulationFilter.getCacheHits() - before[0];
+        final long lookups = hits + SimulationFilter.getCacheMisses() - before[1];
+        final long distinctPixels = DistinctColorFilter.getPixels() - before[4];
+        final long distinctColors = DistinctColorFilter.getDistinctColors() - before[5];
+        LOGGER.log(Level.FINE, "{0} {1,number,#}x{2,number,#}: {3} color cache lookups, "
+                + "{4}% hits, {5} rows copied from the row above, {6} uniform rows, "
+                + "{7} distinct colors in {8} pixels (ratio {9,number,#.#####}), "
+                + "{10} times too many distinct colors",
+                new Object[]{name, width, height, lookups,
+                    lookups == 0 ? 0 : 100 * hits / lookups,
+                    SimulationFilter.getReusedRows() - before[2],
+                    SimulationFilter.getUniformRows() - before[3],
+                    distinctColors, distinctPixels,
+                    distinctPixels == 0 ? 0 : (double) distinctColors / distinctPixels,
+                    DistinctColorFilter.getBailouts() - before[6]});
+    }
+
+    /**
+     * Throws an IllegalArgumentException if pixels are not inside an array or
+     * buffer.
+     *
+     * @param name The name of the pixels for the message.
+     * @param length The length of the array or buffer.
+     * @param offset The position of the first pixel.
+     * @param scanlineStride The distance between rows.
+     * @param pixelSize The size of a pixel.
+     * @param width The number of pixels in a row.
+     * @param height The number of rows.
+     */
+    private static void checkLayout(String name, int length, int offset,
+            int scanlineStride, int pixelSize, int width, int height) {
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("Invalid size " + width + "x" + height);
+        }
+        if (width == 0 || height == 0) {
+            return;
+        }
+        final long rowSize = (long) width * pixelSize;
+        if (offset < 0 || (height > 1 && scanlineStride < rowSize)
+                || offset + (long) (height - 1) * scanlineStride + rowSize > length) {
+            throw new IllegalArgumentException("The " + name + " pixels with offset "
+                    + offset + " and stride " + scanlineStride
+                    + " do not fit in " + length + " elements");
+        }
+    }
+
+    /**
+     * Returns the filter for pixels with 8-bit samples. Neither locks nor
+     * allocates once the filters have been compared for the size of the
+     * pixels.
+     *
+     * @param width The number of pixels in a row.
+     * @param height The number of rows.
+     * @return The filter, or null if the filters must be compared on a sample
+     * of the pixels with calibrate().
+     */
+    private SimulationFilter selectFilter(int width, int height) {
+        if (type == Simulation.normal) {
+            return filter;
+        }
+        if (mode == LookupTable.Mode.lattice) {
+            SimulationFilter lattice = latticeFilter;
+            if (lattice == null) {
+                // several threads may do this at the same time, which is harmless
+                lattice = LatticeTable.get(type, filter).createFilter();
+                latticeFilter = lattice;
+            }
+            return lattice;
+        }
+        // the fastest filter for the content and size of the image
+        return KernelSelector.select(selection, getCandidates(), width, height);
+    }
+
+    /**
+     * Starts comparing the filters on a sample of the pixels after
+     * selectFilter() returned null.
+     *
+     * @param pixels The source pixels.
+     * @param height The number of rows.
+     * @return The filter to use until the comparison is done.
+     */
+    private SimulationFilter calibrate(PixelRows pixels, int height) {
+        return KernelSelector.calibrate(selection, getCandidates(), pixels, height);
+    }
+
+    /**
+     * Returns a compact destination image for the result of filtering an
+     * image, or null if the simulation type has no compact format. See
+     * SimulationFilter.createCompactDestImage().
+     */
+    BufferedImage createCompactDestImage(BufferedImage src) {
+        return filter.createCompactDestImage(src);
+    }
+
+    @Override
+    public Rectangle2D getBounds2D(BufferedImage src) {
+        return filter.getBounds2D(src);
+    }
+
+    @Override
+    public BufferedImage createCompatibleDestImage(BufferedImage src,
+            ColorModel destCM) {
+        return filter.createCompatibleDestImage(src, destCM);
+    }
+
+    @Override
+    public Point2D getPoint2D(Point2D srcPt, Point2D dstPt) {
+        return filter.getPoint2D(srcPt, dstPt);
+    }
+
+    @Override
+    public RenderingHints getRenderingHints() {
+        return filter.getRenderingHints();
+    }
+}
@@ -7,10 +7,10 @@
 package ika.colororacle;
 
 import ika.colororacle.ColorOracle.Simulation;
-import java.awt.RenderingHints;
-import java.awt.geom.Point2D;
-import java.awt.geom.Rectangle2D;
 import java.awt.image.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * A simulator for color-impaired vision (deuteranopia, protanopia and
@@ -25,45 +25,67 @@ import java.awt.image.*;
 public class Simulator {
 
     /**
-     * Default screen gamma on Windows is 2.2.
+     * The name of the system property selecting the Brettel simulation for
+     * protanopia and deuteranopia in the application, see forBrettel(). The
+     * property is read once, when the class is initialized.
      */
-    private static final double GAMMA = 2.2;
-    private static final double GAMMA_INV = 1. / GAMMA;
-    
+    static final String BRETTEL_PROPERTY = "ika.colororacle.brettel";
+
     /**
-     * A lookup table for the conversion from gamma-corrected sRGB values
-     * [0..255] to linear RGB values [0..32767].
+     * True if simulate() uses the Brettel simulation for protanopia and
+     * deuteranopia, read once, as filter() with a transfer curve selects the
+     * operation for every image.
      */
-    private static final short[] SRGB_TO_LINRGB;
+    private static final boolean BRETTEL = Boolean.getBoolean(BRETTEL_PROPERTY);
 
-    static {
-        // initialize SRGB_TO_LINRGB
-        SRGB_TO_LINRGB = new short[256];
-        for (int i = 0; i < 256; i++) {
-            // compute linear rgb between 0 and 1
-            final double lin = (0.992052 * Math.pow(i / 255., GAMMA) + 0.003974);
+    /**
+     * Version of the simulation algorithms. Must be incremented when the
+     * result of a filter changes, such that cached lookup tables are rebuilt.
+     */
+    static final int ALGORITHM_VERSION = 4;
 
-            // scale linear rgb to 0..32767
-            SRGB_TO_LINRGB[i] = (short) (lin * 32767.);
-        }
-    }
     /**
-     * A lookup table for the conversion of linear RGB values [0..255] to
-     * gamma-corrected sRGB values [0..255].
+     * The matrix values of the simulations of deuteranopia and protanopia in
+     * linear RGB, scaled to 0..2^15, see RedGreenFilter.
      */
-    private static final byte[] LINRGB_TO_SRGB;
+    private static final int[] DEUTAN = {9591, 23173, -730};
+    private static final int[] PROTAN = {3683, 29084, 131};
+
+    /**
+     * The number of shared operations for a transfer curve: an operation for
+     * each simulation type, a Brettel operation for each type, and an
+     * operation for each type and severity of anomalous trichromacy.
+     */
+    private static final int OPS_PER_CURVE
+            = Simulation.values().length * (2 + AnomalyMatrices.STEPS);
+
+    /**
+     * The shared operations for the default transfer curve, created when
+     * first requested. Indexed by the ordinal of the simulation type for
+     * forType(), followed by the Brettel operations indexed by the ordinal,
+     * followed by the operations for anomalous trichromacy indexed by the
+     * ordinal times AnomalyMatrices.STEPS plus the severity step.
+     */
+    private static final AtomicReferenceArray<SimulationOp> ops
+            = new AtomicReferenceArray<SimulationOp>(OPS_PER_CURVE);
 
-    static {
-        // initialize LINRGB_TO_SRGB
-        LINRGB_TO_SRGB = new byte[256];
-        for (int i = 0; i < 256; i++) {
-            LINRGB_TO_SRGB[i] = (byte) (255. * Math.pow(i / 255., GAMMA_INV));
-        }
-    }
     /**
-     * Use this BufferedImageOp for the simulation.
+     * The shared operations for the other transfer curves, indexed like ops.
+     * The curves of profiles are cached, so there is one entry per profile.
      */
-    private BufferedImageOp op;
+    private static final ConcurrentMap<TransferCurve, AtomicReferenceArray<SimulationOp>> curveOps
+            = new ConcurrentHashMap<TransferCurve, AtomicReferenceArray<SimulationOp>>();
+
+    /**
+     * The operation for the simulated type of color vision impairment.
+     */
+    private SimulationOp op;
+
+    /**
+     * If true, filter() returns compact images for simulations with fewer than
+     * three independent channels.
+     */
+    private boolean compactOutput = false;
 
     /**
      * Creates a new instance of Simulator
@@ -78,7 +100,259 @@ public class Simulator {
      * @return The image with simulated color vision impairment.
      */
     protected BufferedImage filter(BufferedImage normal) {
-        return op.filter(normal, null);
+        return filter(normal, null);
+    }
+
+    /**
+     * Filter an image into a destination image.
+     *
+     * @param normal The image with normal vision.
+     * @param dst The destination image with the same size as normal, or null
+     * to create a new image. Can be normal to filter the image in place.
+     * @return The image with simulated color vision impairment.
+     * @throws IllegalArgumentException If the destination image cannot be
+     * used, see SimulationFilter.filter().
+     */
+    protected BufferedImage filter(BufferedImage normal, BufferedImage dst) {
+        if (dst == null && compactOutput) {
+            dst = op.createCompactDestImage(normal);
+        }
+        return op.filter(normal, dst);
+    }
+
+    /**
+     * Filter an image of a display with a transfer curve, for example one of
+     * several monitors with different ICC profiles. The simulation type is the
+     * type passed to simulate().
+     *
+     * @param normal The image with normal vision.
+     * @param dst The destination image or null, see filter(BufferedImage,
+     * BufferedImage).
+     * @param curve The transfer curve of the display.
+     * @return The image with simulated color vision impairment.
+     */
+    protected BufferedImage filter(BufferedImage normal, BufferedImage dst,
+            TransferCurve curve) {
+        op = forSimulation(op.getType(), curve);
+        return filter(normal, dst);
+    }
+
+    /**
+     * Returns the image operation for a type of color vision impairment. The
+     * operation is created once and shared: it is immutable and can filter
+     * images on any number of threads at the same time, without locking. Each
+     * image is filtered with the fastest of the exact filters for its size
+     * and content.
+     *
+     * The result of the operation has the same type as the source image. For
+     * an image with an indexed color model and no destination image, only the
+     * palette is converted: the result is a new image with the converted
+     * palette, which shares the raster of the source image, so writing to
+     * its pixels changes the source image. A destination image with the same
+     * size can be passed to avoid allocating a new image, and then receives
+     * the result in its own type, see SimulationFilter.filter().
+     *
+     * @param simulationType The type of impairment to simulate. For normal
+     * vision, the operation copies the colors.
+     * @return The operation, which also filters raw pixels.
+     */
+    public static SimulationOp forType(Simulation simulationType) {
+        return forType(simulationType, TransferCurve.getDefault());
+    }
+
+    /**
+     * Returns the image operation for a type of color vision impairment on a
+     * display with a transfer curve, for example the exact sRGB curve or the
+     * curves of the ICC profile of a monitor. Operations are shared like those
+     * of forType(Simulation), but the lookup tables are only computed for the
+     * default curve.
+     *
+     * @param simulationType The type of impairment to simulate. For normal
+     * vision, the operation copies the colors.
+     * @param curve The transfer curve converting the colors of the images to
+     * linear RGB and back.
+     * @return The operation.
+     */
+    public static SimulationOp forType(Simulation simulationType, TransferCurve curve) {
+        final int id = simulationType.ordinal();
+        final AtomicReferenceArray<SimulationOp> shared = getOps(curve);
+        SimulationOp op = shared.get(id);
+        if (op == null) {
+            SimulationFilter filter = createFilter(simulationType, curve);
+            if (filter == null) {
+                filter = new NormalFilter();
+            }
+            // the lookup tables are computed for the default curve
+            op = new SimulationOp(simulationType, filter,
+                    getName(simulationType.name(), curve),
+                    curve == TransferCurve.getDefault());
+            if (!shared.compareAndSet(id, null, op)) {
+                op = shared.get(id);
+            }
+        }
+        return op;
+    }
+
+    /**
+     * Returns the image operation simulating dichromacy with two half-planes
+     * as described by Brettel, Vienot and Mollon (1997). forType() simulates
+     * protanopia and deuteranopia with a single plane (Vienot et al. 1999),
+     * which is slightly faster but less accurate for highly saturated colors.
+     * Tritanopia is always simulated with two half-planes. Operations are
+     * shared like those of forType(). The lookup tables are only computed
+     * for forType().
+     *
+     * @param simulationType Simulation.protan, deutan or tritan. For normal
+     * vision, the operation copies the colors.
+     * @return The operation.
+     * @throws IllegalArgumentException For Simulation.grayscale and
+     * Simulation.daltonize.
+     */
+    public static SimulationOp forBrettel(Simulation simulationType) {
+        return forBrettel(simulationType, TransferCurve.getDefault());
+    }
+
+    /**
+     * Returns the Brettel operation for a display with a transfer curve, see
+     * forBrettel(Simulation) and forType(Simulation, TransferCurve).
+     *
+     * @param simulationType Simulation.protan, deutan or tritan. For normal
+     * vision, the operation copies the colors.
+     * @param curve The transfer curve of the display.
+     * @return The operation.
+     * @throws IllegalArgumentException For Simulation.grayscale and
+     * Simulation.daltonize.
+     */
+    public static SimulationOp forBrettel(Simulation simulationType, TransferCurve curve) {
+        switch (simulationType) {
+            case normal:
+            case tritan:
+                return forType(simulationType, curve);
+            case grayscale:
+            case daltonize:
+                throw new IllegalArgumentException("No Brettel simulation for "
+                        + simulationType);
+        }
+        final int id = Simulation.values().length + simulationType.ordinal();
+        final AtomicReferenceArray<SimulationOp> shared = getOps(curve);
+        SimulationOp op = shared.get(id);
+        if (op == null) {
+            op = new SimulationOp(simulationType, new BrettelFilter(simulationType, curve),
+                    getName(simulationType + " brettel", curve), false);
+            if (!shared.compareAndSet(id, null, op)) {
+                op = shared.get(id);
+            }
+        }
+        return op;
+    }
+
+    /**
+     * Returns the image operation for anomalous trichromacy, a partial loss of
+     * the sensitivity of one type of cone, with the matrices of Machado et al.
+     * (2009), see AnomalyMatrices. Operations are shared like those of
+     * forType(). The lookup tables are only computed for forType().
+     *
+     * @param simulationType Simulation.protan for protanomaly, deutan for
+     * deuteranomaly, or tritan for tritanomaly.
+     * @param severity The severity between 0 and 1, rounded to the nearest
+     * step of 0.1. A severity of 0 returns the operation for normal vision,
+     * and a severity of 1 simulates dichromacy, with slightly different
+     * results than forType().
+     * @return The operation.
+     * @throws IllegalArgumentException If the severity is not between 0 and 1,
+     * or there are no matrices for the simulation type.
+     */
+    public static SimulationOp forSeverity(Simulation simulationType, double severity) {
+        return forSeverity(simulationType, severity, TransferCurve.getDefault());
+    }
+
+    /**
+     * Returns the operation for anomalous trichromacy on a display with a
+     * transfer curve, see forSeverity(Simulation, double) and
+     * forType(Simulation, TransferCurve).
+     *
+     * @param simulationType Simulation.protan, deutan or tritan.
+     * @param severity The severity between 0 and 1.
+     * @param curve The transfer curve of the display.
+     * @return The operation.
+     * @throws IllegalArgumentException If the severity is not between 0 and 1,
+     * or there are no matrices for the simulation type.
+     */
+    public static SimulationOp forSeverity(Simulation simulationType, double severity,
+            TransferCurve curve) {
+        final int step = AnomalyMatrices.getStep(severity);
+        if (step == 0 || simulationType == Simulation.normal) {
+            return forType(Simulation.normal, curve);
+        }
+        final int id = Simulation.values().length * 2
+                + simulationType.ordinal() * AnomalyMatrices.STEPS + step;
+        final AtomicReferenceArray<SimulationOp> shared = getOps(curve);
+        SimulationOp op = shared.get(id);
+        if (op == null) {
+            SimulationFilter filter = new MatrixFilter(
+                    AnomalyMatrices.getMatrix(simulationType, step), curve);
+            op = new SimulationOp(simulationType, filter, getName(simulationType
+                    + " " + step / (double) (AnomalyMatrices.STEPS - 1), curve), false);
+            if (!shared.compareAndSet(id, null, op)) {
+                op = shared.get(id);
+            }
+        }
+        return op;
+    }
+
+    /**
+     * Returns the shared operations for a transfer curve.
+     */
+    private static AtomicReferenceArray<SimulationOp> getOps(TransferCurve curve) {
+        if (curve == TransferCurve.getDefault()) {
+            return ops;
+        }
+        AtomicReferenceArray<SimulationOp> array = curveOps.get(curve);
+        if (array == null) {
+            array = new AtomicReferenceArray<SimulationOp>(OPS_PER_CURVE);
+            final AtomicReferenceArray<SimulationOp> previous = curveOps.putIfAbsent(curve, array);
+            if (previous != null) {
+                array = previous;
+            }
+        }
+        return array;
+    }
+
+    /**
+     * Returns the name of an operation for log messages, with the transfer
+     * curve unless it is the default curve.
+     */
+    private static String getName(String name, TransferCurve curve) {
+        return curve == TransferCurve.getDefault() ? name : name + " " + curve;
+    }
+
+    /**
+     * Sets whether filter() returns compact images when no destination image
+     * is passed. Grayscale results are then stored in TYPE_BYTE_INDEXED
+     * images with a gray palette and one byte per pixel, and deutan and
+     * protan results in images with two bytes per pixel. Compact images take
+     * less memory, but images with two bytes per pixel are slower to draw.
+     * See CompactFormats.
+     *
+     * @param compactOutput True for compact images.
+     */
+    protected void setCompactOutput(boolean compactOutput) {
+        this.compactOutput = compactOutput;
+    }
+
+    /**
+     * Returns true if filter() returns compact images.
+     */
+    protected boolean isCompactOutput() {
+        return compactOutput;
+    }
+
+    /**
+     * Returns the kind of filter used for the last filtered image, or null if
+     * no image has been filtered yet.
+     */
+    KernelSelector.Kernel getKernel() {
+        return op == null ? null : op.getLastKernel();
     }
 
     /**
@@ -87,292 +361,626 @@ public class Simulator {
      * @param simulationType The type of impairment to simulate.
      */
     protected void simulate(Simulation simulationType) {
+        if (simulationType == Simulation.normal) {
+            return;
+        }
+
+        op = forSimulation(simulationType, TransferCurve.getDefault());
+        // start computing the lookup table in a background thread. The
+        // other filters are used until the table is ready.
+        op.prepareTables();
+    }
+
+    /**
+     * Returns the operation that simulate() uses for a simulation type: the
+     * Brettel operation for protanopia and deuteranopia if the
+     * BRETTEL_PROPERTY system property is true, and the operation of
+     * forType() otherwise.
+     */
+    private static SimulationOp forSimulation(Simulation simulationType, TransferCurve curve) {
+        if ((simulationType == Simulation.protan || simulationType == Simulation.deutan)
+                && BRETTEL) {
+            return forBrettel(simulationType, curve);
+        }
+        return forType(simulationType, curve);
+    }
+
+    /**
+     * Creates the arithmetic filter for a simulation type.
+     *
+     * @param simulationType The type of impairment to simulate.
+     * @param curve The transfer curve of the display.
+     * @return The filter, or null for normal vision.
+     */
+    static SimulationFilter createFilter(Simulation simulationType, TransferCurve curve) {
         switch (simulationType) {
             case deutan:
-                op = new RedGreenFilter(9591, 23173, -730);
-                break;
+                return new RedGreenFilter(DEUTAN[0], DEUTAN[1], DEUTAN[2], curve);
             case protan:
-                op = new RedGreenFilter(3683, 29084, 131);
-                break;
+                return new RedGreenFilter(PROTAN[0], PROTAN[1], PROTAN[2], curve);
             case tritan:
-                op = new TritanFilter();
-                break;
+                return new BrettelFilter(Simulation.tritan, curve);
             case grayscale:
-                op = new GrayscaleFilter();
-                break;
+                return new GrayscaleFilter(curve);
+            case daltonize:
+                return new DaltonizeFilter(DEUTAN[0], DEUTAN[1], DEUTAN[2], curve);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * A filter for normal vision, which copies the colors.
+     */
+    static class NormalFilter extends SimulationFilter {
+
+        @Override
+        int filterRGB(int rgb) {
+            return rgb | 0xff000000;
+        }
+
+        @Override
+        long filterRGB48(long rgb) {
+            return rgb;
         }
     }
 
     /**
      * A red-green blindness filter (deuteranopia and protanopia).
      */
-    private class RedGreenFilter implements BufferedImageOp {
+    static class RedGreenFilter extends SimulationFilter {
+
+        /**
+         * The contributions of the red and green input channels to the
+         * simulated red and green channels, which are identical.
+         */
+        final int[] redFromRed = new int[256];
+        final int[] redFromGreen = new int[256];
+
+        /**
+         * The contributions of the input channels to the simulated blue
+         * channel.
+         */
+        final int[] blueFromRed = new int[256];
+        final int[] blueFromGreen = new int[256];
+        final int[] blueFromBlue = new int[256];
+
+        /**
+         * Linear values [0..255] to the red, green and blue values of the
+         * display.
+         */
+        final byte[] linearToRed;
+        final byte[] linearToGreen;
+        final byte[] linearToBlue;
+
+        /**
+         * The matrix values scaled to 0..2^15, for 16-bit samples.
+         */
+        private final long k1, k2, k3;
 
-        private final int k1;
-        private final int k2;
-        private final int k3;
+        /**
+         * The transfer curve of the display.
+         */
+        private final TransferCurve curve;
 
-        public RedGreenFilter(int k1, int k2, int k3) {
+        public RedGreenFilter(int k1, int k2, int k3, TransferCurve curve) {
             this.k1 = k1;
             this.k2 = k2;
             this.k3 = k3;
+            this.curve = curve;
+            linearToRed = curve.getEncodedTable(0);
+            linearToGreen = curve.getEncodedTable(1);
+            linearToBlue = curve.getEncodedTable(2);
+            // scale the matrix values to 0..2^15 for integer computations 
+            // of the simulated protan values.
+            // divide after the computation by 2^15 to rescale.
+            // also divide by 2^15 and multiply by 2^8 to scale the linear rgb to 0..255
+            // total division is by 2^15 * 2^15 / 2^8 = 2^22
+            // The products of the matrix values and the linear rgb values
+            // [0..2^15-1] are precomputed for each 8-bit channel value.
+            final short[] redToLinear = curve.getLinearTable(0);
+            final short[] greenToLinear = curve.getLinearTable(1);
+            final short[] blueToLinear = curve.getLinearTable(2);
+            for (int i = 0; i < 256; i++) {
+                redFromRed[i] = k1 * redToLinear[i];
+                redFromGreen[i] = k2 * greenToLinear[i];
+                blueFromRed[i] = k3 * redToLinear[i];
+                blueFromGreen[i] = -k3 * greenToLinear[i];
+                blueFromBlue[i] = 32768 * blueToLinear[i];
+            }
         }
 
         @Override
-        public BufferedImage filter(BufferedImage src, BufferedImage dst) {
-            if (dst == null) {
-                dst = createCompatibleDestImage(src, null);
-            }
+        int filterRGB(int in) {
+            final int r = (0xff0000 & in) >> 16;
+            final int g = (0xff00 & in) >> 8;
+            final int b = 0xff & in;
 
-            // make sure the two images have the same size, color space, etc.
-            // MISSING !!! ???
-            DataBufferInt inBuffer = (DataBufferInt) src.getRaster().getDataBuffer();
-            DataBufferInt outBuffer = (DataBufferInt) dst.getRaster().getDataBuffer();
-            int[] inData = inBuffer.getData();
-            int[] outData = outBuffer.getData();
-
-            int prevIn = 0;
-            int prevOut = 0;
-            final int length = inData.length;
-            for (int i = 0; i < length; i++) {
-                final int in = inData[i];
-                if (in == prevIn) {
-                    outData[i] = prevOut;
-                } else {
-
-                    final int r = (0xff0000 & in) >> 16;
-                    final int g = (0xff00 & in) >> 8;
-                    final int b = 0xff & in;
-
-                    // get linear rgb values in the range 0..2^15-1
-                    final int r_lin = SRGB_TO_LINRGB[r];
-                    final int g_lin = SRGB_TO_LINRGB[g];
-                    final int b_lin = SRGB_TO_LINRGB[b];
-
-                    // simulated red and green are identical
-                    // scale the matrix values to 0..2^15 for integer computations 
-                    // of the simulated protan values.
-                    // divide after the computation by 2^15 to rescale.
-                    // also divide by 2^15 and multiply by 2^8 to scale the linear rgb to 0..255
-                    // total division is by 2^15 * 2^15 / 2^8 = 2^22
-                    // shift the bits by 22 places instead of dividing
-                    int r_blind = (int) (k1 * r_lin + k2 * g_lin) >> 22;
-                    int b_blind = (int) (k3 * r_lin - k3 * g_lin + 32768 * b_lin) >> 22;
-
-                    if (r_blind < 0) {
-                        r_blind = 0;
-                    } else if (r_blind > 255) {
-                        r_blind = 255;
-                    }
+            // simulated red and green are identical
+            // shift the bits by 22 places instead of dividing
+            int r_blind = (redFromRed[r] + redFromGreen[g]) >> 22;
+            int b_blind = (blueFromRed[r] + blueFromGreen[g] + blueFromBlue[b]) >> 22;
 
-                    if (b_blind < 0) {
-                        b_blind = 0;
-                    } else if (b_blind > 255) {
-                        b_blind = 255;
-                    }
-
-                    // convert reduced linear rgb to gamma corrected rgb
-                    int red = LINRGB_TO_SRGB[r_blind];
-                    red = red >= 0 ? red : 256 + red; // from unsigned to signed
-                    int blue = LINRGB_TO_SRGB[b_blind];
-                    blue = blue >= 0 ? blue : 256 + blue; // from unsigned to signed
-
-                    final int out = 0xff000000 | red << 16 | red << 8 | blue;
+            if (r_blind < 0) {
+                r_blind = 0;
+            } else if (r_blind > 255) {
+                r_blind = 255;
+            }
 
-                    outData[i] = out;
-                    prevIn = in;
-                    prevOut = out;
-                }
+            if (b_blind < 0) {
+                b_blind = 0;
+            } else if (b_blind > 255) {
+                b_blind = 255;
             }
 
-            return dst;
-        }
+            // convert reduced linear rgb to gamma corrected rgb
+            final int red = linearToRed[r_blind] & 0xff; // from signed to unsigned
+            final int green = linearToGreen == linearToRed ? red
+                    : linearToGreen[r_blind] & 0xff;
+            final int blue = linearToBlue[b_blind] & 0xff;
 
-        @Override
-        public Rectangle2D getBounds2D(BufferedImage src) {
-            return src.getRaster().getBounds();
+            return 0xff000000 | red << 16 | green << 8 | blue;
         }
 
         @Override
-        public BufferedImage createCompatibleDestImage(BufferedImage src,
-                ColorModel destCM) {
-            if (destCM == null) {
-                destCM = src.getColorModel();
+        BufferedImage createCompactDestImage(BufferedImage src) {
+            // the compact format requires identical red and green values
+            if (!curve.isUniform() || !isCompactFormatSupported(src)) {
+                return null;
             }
-            int width = src.getWidth();
-            int height = src.getHeight();
-            BufferedImage image = new BufferedImage(destCM,
-                    destCM.createCompatibleWritableRaster(width, height),
-                    destCM.isAlphaPremultiplied(), null);
-            return image;
+            return CompactFormats.createRedGreenImage(src.getWidth(), src.getHeight());
         }
 
         @Override
-        public Point2D getPoint2D(Point2D srcPt, Point2D dstPt) {
-            if (dstPt == null) {
-                dstPt = new Point2D.Float();
-            }
-            dstPt.setLocation(srcPt.getX(), srcPt.getY());
-            return dstPt;
+        long filterRGB48(long rgb) {
+            final char[][] toLinear = curve.getLinearTables16();
+            final long r = toLinear[0][(int) (rgb >>> 32) & 0xffff];
+            final long g = toLinear[1][(int) (rgb >>> 16) & 0xffff];
+            final long b = toLinear[2][(int) rgb & 0xffff];
+
+            // the matrix values are scaled by 2^15
+            final int r_blind = (int) Math.max(0, Math.min(65535, (k1 * r + k2 * g) >> 15));
+            final int b_blind = (int) Math.max(0, Math.min(65535, (k3 * r - k3 * g + 32768 * b) >> 15));
+
+            final char[][] toEncoded = curve.getEncodedTables16();
+            return (long) toEncoded[0][r_blind] << 32
+                    | (long) toEncoded[1][r_blind] << 16
+                    | toEncoded[2][b_blind];
         }
+    }
 
-        @Override
-        public RenderingHints getRenderingHints() {
-            return null;
+    /**
+     * A filter for daltonization, which corrects colors for viewers with
+     * protanopia or deuteranopia: the difference between a color and its
+     * simulation, which is lost to the viewer, is redistributed to channels
+     * that the viewer can distinguish.
+     *
+     * Fidaner, O., Lin, P., Ozguven, N. (2005). Analysis of Color Blindness.
+     * The error of the simulation in linear RGB is shifted from red towards
+     * green and blue with the matrix
+     *
+     * [0   0 0]
+     * [0.7 1 0]
+     * [0.7 0 1]
+     *
+     * The simulation M, the error I - M and the shift D are all linear, so the
+     * correction I + D (I - M) is a single 3x3 matrix, which is applied to
+     * linear RGB by MatrixFilter with table lookups and integer arithmetic.
+     */
+    static class DaltonizeFilter extends MatrixFilter {
+
+        /**
+         * Creates a filter.
+         *
+         * @param k1 The matrix values of the simulation, scaled to 0..2^15,
+         * see RedGreenFilter.
+         * @param k2
+         * @param k3
+         * @param curve The transfer curve of the display.
+         */
+        public DaltonizeFilter(int k1, int k2, int k3, TransferCurve curve) {
+            super(createMatrix(k1, k2, k3), curve);
+        }
+
+        /**
+         * Returns the correction I + D (I - M) for a simulation M.
+         */
+        private static double[] createMatrix(int k1, int k2, int k3) {
+            // the simulation, row by row
+            final double[] m = {
+                k1 / 32768., k2 / 32768., 0,
+                k1 / 32768., k2 / 32768., 0,
+                k3 / 32768., -k3 / 32768., 1
+            };
+            // the shift of the error
+            final double[] d = {
+                0, 0, 0,
+                0.7, 1, 0,
+                0.7, 0, 1
+            };
+            final double[] matrix = new double[9];
+            for (int row = 0; row < 3; row++) {
+                for (int col = 0; col < 3; col++) {
+                    double sum = row == col ? 1 : 0;
+                    for (int i = 0; i < 3; i++) {
+                        final double error = (i == col ? 1 : 0) - m[i * 3 + col];
+                        sum += d[row * 3 + i] * error;
+                    }
+                    matrix[row * 3 + col] = sum;
+                }
+            }
+            return matrix;
         }
     }
 
     /**
-     * A filter for simulated Tritanopia.
+     * A filter for simulated dichromacy with two half-planes: tritanopia, and
+     * optionally protanopia and deuteranopia.
+     *
+     * Code for color blindness simulation from GIMP 2.2. Performs color image
+     * simulation based on Brettel, Vienot and Mollon JOSA 14/10 1997. The
+     * missing cone response is computed from the other two, with a different
+     * projection on each side of a plane through the neutral axis.
+     *
+     * The conversion from linear RGB to LMS, the projection onto one of two
+     * half-planes, and the conversion back to linear RGB are all linear, so
+     * for each half-plane they are combined into a single 3x3 matrix. The
+     * products of the matrix values and the linear RGB values are
+     * precomputed for each 8-bit channel value in fixed point, as is the test
+     * selecting the half-plane, such that the half-plane is selected with the
+     * sign bit instead of a branch.
+     *
+     * The fixed point values differ from the floating point values of the
+     * original GIMP code by less than 1/2000 of a level. A value this close to
+     * an integer may be truncated to a different level, which for dark colors
+     * changes the displayed value by up to 20 levels, so these colors are
+     * computed with the floating point code instead, see filterFloat().
      */
-    private class TritanFilter implements BufferedImageOp {
+    static class BrettelFilter extends SimulationFilter {
 
-        @Override
-        public BufferedImage filter(BufferedImage src, BufferedImage dst) {
-
-            /* Code for tritan simulation from GIMP 2.2
-             *  This could be optimised for speed.
-             *  Performs tritan color image simulation based on
-             *  Brettel, Vienot and Mollon JOSA 14/10 1997
-             *  L,M,S for lambda=475,485,575,660
-             *
-             * Load the LMS anchor-point values for lambda = 475 & 485 nm (for
-             * protans & deutans) and the LMS values for lambda = 575 & 660 nm
-             * (for tritans)
+        /**
+         * Number of fractional bits of the simulated linear RGB values.
+         */
+        static final int FRACTION_BITS = 20;
+
+        /**
+         * Simulated linear RGB values within 1/1024 of a level of an integer
+         * are computed by filterFloat(), scaled by 2^FRACTION_BITS.
+         */
+        static final int MARGIN = 1 << (FRACTION_BITS - 10);
+
+        /**
+         * The fractional bits of the simulated linear RGB values.
+         */
+        static final int FRACTION_MASK = (1 << FRACTION_BITS) - 1;
+
+        /**
+         * The contributions of the red, green and blue input channels to the
+         * inflection test, scaled by 2^16. For tritanopia the test is
+         * M - inflection * L, for deuteranopia S - inflection * L, and for
+         * protanopia S - inflection * M. The sum is negative for colors on
+         * the first side of the inflection line.
+         */
+        final int[] inflectionFromRed = new int[256];
+        final int[] inflectionFromGreen = new int[256];
+        final int[] inflectionFromBlue = new int[256];
+
+        /**
+         * The contributions of the input channels to the simulated linear
+         * red, green and blue channels [0..255], scaled by 2^FRACTION_BITS.
+         * Each table has an entry for each 8-bit channel value: first the
+         * contributions of red, green and blue for colors on the first side of
+         * the inflection line, then for colors on the second side.
+         */
+        final int[] redTable = new int[6 * 256];
+        final int[] greenTable = new int[6 * 256];
+        final int[] blueTable = new int[6 * 256];
+
+        /**
+         * Number of fractional bits of the matrix for 16-bit samples.
+         */
+        private static final int FRACTION_BITS_16 = 16;
+
+        /**
+         * The matrices converting linear RGB to simulated linear RGB for
+         * 16-bit samples, scaled by 2^FRACTION_BITS_16: first the rows for red,
+         * green and blue for colors on the first side of the inflection line,
+         * then for colors on the second side.
+         */
+        private final long[] matrix16 = new long[18];
+
+        /**
+         * The coefficients of the inflection test for 16-bit samples, scaled
+         * by 2^FRACTION_BITS_16.
+         */
+        private final long[] inflection16 = new long[3];
+
+        /**
+         * Linear values [0..255] to the red, green and blue values of the
+         * display.
+         */
+        final byte[] linearToRed;
+        final byte[] linearToGreen;
+        final byte[] linearToBlue;
+
+        /**
+         * The transfer curve of the display.
+         */
+        private final TransferCurve curve;
+
+        /**
+         * The simulation type, the inflection and the planes through white and
+         * the anchors of the original floating point code: a1, b1, c1 for the
+         * first side of the inflection line, then a2, b2, c2.
+         */
+        private final Simulation type;
+        private final float inflection;
+        private final float[] planes;
+
+        /**
+         * The red, green and blue values to linear values [0..2^15-1].
+         */
+        private final short[] redToLinear;
+        private final short[] greenToLinear;
+        private final short[] blueToLinear;
+
+        /**
+         * Creates a filter.
+         *
+         * @param type Simulation.protan, deutan or tritan.
+         * @param curve The transfer curve of the display.
+         */
+        public BrettelFilter(Simulation type, TransferCurve curve) {
+            this.type = type;
+            this.curve = curve;
+            redToLinear = curve.getLinearTable(0);
+            greenToLinear = curve.getLinearTable(1);
+            blueToLinear = curve.getLinearTable(2);
+            linearToRed = curve.getEncodedTable(0);
+            linearToGreen = curve.getEncodedTable(1);
+            linearToBlue = curve.getEncodedTable(2);
+
+            /* The LMS values of the anchor wavelengths: lambda = 475 & 485 nm
+             * (for protans & deutans) and lambda = 575 & 660 nm (for tritans)
              */
+            final float[] anchor = {
+                0.08008f, 0.1579f, 0.5897f, // 475 nm
+                0.1284f, 0.2237f, 0.3636f, // 485 nm
+                0.9856f, 0.7325f, 0.001079f, // 575 nm
+                0.0914f, 0.007009f, 0.0f // 660 nm
+            };
+            /* The LMS values of equal-energy white */
             final float anchor_e0 = 0.05059983f + 0.08585369f + 0.00952420f;
             final float anchor_e1 = 0.01893033f + 0.08925308f + 0.01370054f;
             final float anchor_e2 = 0.00292202f + 0.00975732f + 0.07145979f;
-            final float inflection = anchor_e1 / anchor_e0;
-
-            /* Set 1: regions where lambda_a=575, set 2: lambda_a=475 */
-            final float a1 = -anchor_e2 * 0.007009f;
-            final float b1 = anchor_e2 * 0.0914f;
-            final float c1 = anchor_e0 * 0.007009f - anchor_e1 * 0.0914f;
-            final float a2 = anchor_e1 * 0.3636f - anchor_e2 * 0.2237f;
-            final float b2 = anchor_e2 * 0.1284f - anchor_e0 * 0.3636f;
-            final float c2 = anchor_e0 * 0.2237f - anchor_e1 * 0.1284f;
-
-            if (dst == null) {
-                dst = createCompatibleDestImage(src, null);
+
+            /* The planes through white and the anchors: a * L + b * M + c * S
+             * = 0. Set 1 for the first side of the inflection line, set 2 for
+             * the second side.
+             */
+            final int anchor1;
+            final int anchor2;
+            switch (type) {
+                case protan:
+                    anchor1 = 6;
+                    anchor2 = 0;
+                    inflection = anchor_e2 / anchor_e1;
+                    break;
+                case deutan:
+                    anchor1 = 6;
+                    anchor2 = 0;
+                    inflection = anchor_e2 / anchor_e0;
+                    break;
+                case tritan:
+                    anchor1 = 9;
+                    anchor2 = 3;
+                    inflection = anchor_e1 / anchor_e0;
+                    break;
+                default:
+                    throw new IllegalArgumentException("No Brettel simulation for " + type);
             }
+            final float a1 = anchor_e1 * anchor[anchor1 + 2] - anchor_e2 * anchor[anchor1 + 1];
+            final float b1 = anchor_e2 * anchor[anchor1] - anchor_e0 * anchor[anchor1 + 2];
+            final float c1 = anchor_e0 * anchor[anchor1 + 1] - anchor_e1 * anchor[anchor1];
+            final float a2 = anchor_e1 * anchor[anchor2 + 2] - anchor_e2 * anchor[anchor2 + 1];
+            final float b2 = anchor_e2 * anchor[anchor2] - anchor_e0 * anchor[anchor2 + 2];
+            final float c2 = anchor_e0 * anchor[anchor2 + 1] - anchor_e1 * anchor[anchor2];
+            planes = new float[]{a1, b1, c1, a2, b2, c2};
+
+            /* RGB to LMS transform matrix */
+            final double[] rgb2l = {0.05059983, 0.08585369, 0.00952420};
+            final double[] rgb2m = {0.01893033, 0.08925308, 0.01370054};
+            final double[] rgb2s = {0.00292202, 0.00975732, 0.07145979};
 
-            // make sure the two images have the same size, color space, etc.
-            // MISSING FIXME
-            DataBufferInt inBuffer = (DataBufferInt) src.getRaster().getDataBuffer();
-            DataBufferInt outBuffer = (DataBufferInt) dst.getRaster().getDataBuffer();
-            int[] inData = inBuffer.getData();
-            int[] outData = outBuffer.getData();
-
-            int prevIn = 0;
-            int prevOut = 0;
-            final int length = inData.length;
-            for (int i = 0; i < length; i++) {
-                final int in = inData[i];
-                if (in == prevIn) {
-                    outData[i] = prevOut;
-                } else {
-                    final int rgb = inData[i];
-
-                    int r = (0xff0000 & rgb) >> 16;
-                    int g = (0xff00 & rgb) >> 8;
-                    int b = 0xff & rgb;
-
-                    // get linear rgb values in the range 0..2^15-1
-                    r = SRGB_TO_LINRGB[r];
-                    g = SRGB_TO_LINRGB[g];
-                    b = SRGB_TO_LINRGB[b];
-
-                    /* Convert to LMS (dot product with transform matrix) */
-                    final float L = (r * 0.05059983f + g * 0.08585369f + b * 0.00952420f) / 32767.f;
-                    final float M = (r * 0.01893033f + g * 0.08925308f + b * 0.01370054f) / 32767.f;
-                    float S; // = (r * 0.00292202f + g * 0.00975732f + b * 0.07145979f) / 32767.f;
-
-                    final float tmp = M / L;
-
-                    /* See which side of the inflection line we fall... */
-                    if (tmp < inflection) {
-                        S = -(a1 * L + b1 * M) / c1;
-                    } else {
-                        S = -(a2 * L + b2 * M) / c2;
+            for (int in = 0; in < 3; in++) {
+                final short[] toLinear = curve.getLinearTable(in);
+                // linear rgb [0..2^15-1] to L, M and S
+                double l = rgb2l[in] / 32767.;
+                double m = rgb2m[in] / 32767.;
+                double s = rgb2s[in] / 32767.;
+                for (int side = 0; side < 2; side++) {
+                    final double a = side == 0 ? a1 : a2;
+                    final double b = side == 0 ? b1 : b2;
+                    final double c = side == 0 ? c1 : c2;
+                    switch (type) {
+                        case protan:
+                            /* L = -(b * M + c * S) / a */
+                            l = -(b * m + c * s) / a;
+                            break;
+                        case deutan:
+                            /* M = -(a * L + c * S) / b */
+                            m = -(a * l + c * s) / b;
+                            break;
+                        default:
+                            /* S = -(a * L + b * M) / c */
+                            s = -(a * l + b * m) / c;
+                            break;
                     }
 
                     /* Convert back to RGB (cross product with transform matrix) */
-                    int ired = (int) (255.f * (L * 30.830854f
-                            - M * 29.832659f + S * 1.610474f));
-                    int igreen = (int) (255.f * (-L * 6.481468f
-                            + M * 17.715578f - S * 2.532642f));
-                    int iblue = (int) (255.f * (-L * 0.375690f
-                            - M * 1.199062f + S * 14.273846f));
-
-                    // convert reduced linear rgb to gamma corrected rgb
-                    if (ired < 0) {
-                        ired = 0;
-                    } else if (ired > 255) {
-                        ired = 255;
-                    } else {
-                        ired = LINRGB_TO_SRGB[ired];
-                        ired = ired >= 0 ? ired : 256 + ired; // from unsigned to signed
-                    }
-                    if (igreen < 0) {
-                        igreen = 0;
-                    } else if (igreen > 255) {
-                        igreen = 255;
-                    } else {
-                        igreen = LINRGB_TO_SRGB[igreen];
-                        igreen = igreen >= 0 ? igreen : 256 + igreen; // from unsigned to signed
-                    }
-                    if (iblue < 0) {
-                        iblue = 0;
-                    } else if (iblue > 255) {
-                        iblue = 255;
-                    } else {
-                        iblue = LINRGB_TO_SRGB[iblue];
-                        iblue = iblue >= 0 ? iblue : 256 + iblue; // from unsigned to signed
-                    }
+                    final double red = 255. * (l * 30.830854 - m * 29.832659 + s * 1.610474);
+                    final double green = 255. * (-l * 6.481468 + m * 17.715578 - s * 2.532642);
+                    final double blue = 255. * (-l * 0.375690 - m * 1.199062 + s * 14.273846);
 
-                    final int out = (int) (ired << 16 | igreen << 8 | iblue | 0xff000000);
+                    // linear rgb [0..1] to simulated linear rgb [0..1]
+                    final double scale = 32767. / 255. * (1 << FRACTION_BITS_16);
+                    matrix16[side * 9 + in] = Math.round(red * scale);
+                    matrix16[side * 9 + 3 + in] = Math.round(green * scale);
+                    matrix16[side * 9 + 6 + in] = Math.round(blue * scale);
 
-                    outData[i] = out;
-                    prevIn = in;
-                    prevOut = out;
+                    final int offset = (side * 3 + in) * 256;
+                    for (int i = 0; i < 256; i++) {
+                        final double lin = toLinear[i] * (double) (1 << FRACTION_BITS);
+                        redTable[offset + i] = (int) Math.round(red * lin);
+                        greenTable[offset + i] = (int) Math.round(green * lin);
+                        blueTable[offset + i] = (int) Math.round(blue * lin);
+                    }
                 }
             }
 
-            return dst;
+            // X / Y < inflection is equivalent to X - inflection * Y < 0,
+            // because Y is always positive.
+            final double[] x = type == Simulation.tritan ? rgb2m : rgb2s;
+            final double[] y = type == Simulation.protan ? rgb2m : rgb2l;
+            for (int in = 0; in < 3; in++) {
+                inflection16[in] = Math.round((x[in] - inflection * y[in])
+                        * (1 << FRACTION_BITS_16));
+            }
+            for (int i = 0; i < 256; i++) {
+                inflectionFromRed[i] = (int) Math.round((x[0] - inflection * y[0])
+                        * redToLinear[i] * 65536.);
+                inflectionFromGreen[i] = (int) Math.round((x[1] - inflection * y[1])
+                        * greenToLinear[i] * 65536.);
+                inflectionFromBlue[i] = (int) Math.round((x[2] - inflection * y[2])
+                        * blueToLinear[i] * 65536.);
+            }
         }
 
         @Override
-        public Rectangle2D getBounds2D(BufferedImage src) {
-            return src.getRaster().getBounds();
-        }
+        int filterRGB(int rgb) {
+            final int r = (0xff0000 & rgb) >> 16;
+            final int g = (0xff00 & rgb) >> 8;
+            final int b = 0xff & rgb;
 
-        @Override
-        public BufferedImage createCompatibleDestImage(BufferedImage src,
-                ColorModel destCM) {
-            if (destCM == null) {
-                destCM = src.getColorModel();
+            /* See which side of the inflection line we fall... */
+            // the sign bit selects the tables without a branch: 0 for the
+            // first side, 3 * 256 for the second side.
+            final int side = ((inflectionFromRed[r] + inflectionFromGreen[g]
+                    + inflectionFromBlue[b]) >>> 31 ^ 1) * (3 * 256);
+            final int ri = side + r;
+            final int gi = side + 256 + g;
+            final int bi = side + 512 + b;
+
+            // simulated linear rgb [0..255] scaled by 2^FRACTION_BITS. Sums of
+            // the tables may overflow temporarily, but integer addition wraps
+            // around, and the final sums are in range.
+            final int red = redTable[ri] + redTable[gi] + redTable[bi];
+            final int green = greenTable[ri] + greenTable[gi] + greenTable[bi];
+            final int blue = blueTable[ri] + blueTable[gi] + blueTable[bi];
+            if (Math.min(Math.min((red + MARGIN) & FRACTION_MASK,
+                    (green + MARGIN) & FRACTION_MASK),
+                    (blue + MARGIN) & FRACTION_MASK) < 2 * MARGIN) {
+                return filterFloat(r, g, b);
             }
-            int width = src.getWidth();
-            int height = src.getHeight();
-            BufferedImage image = new BufferedImage(destCM,
-                    destCM.createCompatibleWritableRaster(width, height),
-                    destCM.isAlphaPremultiplied(), null);
-            return image;
+
+            // clamp without branches and convert reduced linear rgb to gamma
+            // corrected rgb
+            final int ired = linearToRed[Math.max(0, Math.min(255, red >> FRACTION_BITS))] & 0xff;
+            final int igreen = linearToGreen[Math.max(0, Math.min(255, green >> FRACTION_BITS))] & 0xff;
+            final int iblue = linearToBlue[Math.max(0, Math.min(255, blue >> FRACTION_BITS))] & 0xff;
+
+            return ired << 16 | igreen << 8 | iblue | 0xff000000;
         }
 
-        @Override
-        public Point2D getPoint2D(Point2D srcPt, Point2D dstPt) {
-            if (dstPt == null) {
-                dstPt = new Point2D.Float();
+        /**
+         * Filters a color with the floating point code from GIMP 2.2, which
+         * the fixed point code replaces. Used for the few colors with a
+         * simulated linear RGB value that the fixed point code could truncate
+         * to a different level.
+         *
+         * @param r The red value [0..255].
+         * @param g The green value [0..255].
+         * @param b The blue value [0..255].
+         * @return The simulated color.
+         */
+        int filterFloat(int r, int g, int b) {
+            // get linear rgb values in the range 0..2^15-1
+            final int linR = redToLinear[r];
+            final int linG = greenToLinear[g];
+            final int linB = blueToLinear[b];
+
+            /* Convert to LMS (dot product with transform matrix) */
+            float L = (linR * 0.05059983f + linG * 0.08585369f + linB * 0.00952420f) / 32767.f;
+            float M = (linR * 0.01893033f + linG * 0.08925308f + linB * 0.01370054f) / 32767.f;
+            float S = (linR * 0.00292202f + linG * 0.00975732f + linB * 0.07145979f) / 32767.f;
+
+            /* See which side of the inflection line we fall... */
+            final float tmp;
+            switch (type) {
+                case protan:
+                    tmp = S / M;
+                    break;
+                case deutan:
+                    tmp = S / L;
+                    break;
+                default:
+                    tmp = M / L;
+                    break;
             }
-            dstPt.setLocation(srcPt.getX(), srcPt.getY());
-            return dstPt;
+            final int p = tmp < inflection ? 0 : 3;
+            final float planeA = planes[p];
+            final float planeB = planes[p + 1];
+            final float planeC = planes[p + 2];
+            switch (type) {
+                case protan:
+                    L = -(planeB * M + planeC * S) / planeA;
+                    break;
+                case deutan:
+                    M = -(planeA * L + planeC * S) / planeB;
+                    break;
+                default:
+                    S = -(planeA * L + planeB * M) / planeC;
+                    break;
+            }
+
+            /* Convert back to RGB (cross product with transform matrix) */
+            final int ired = (int) (255.f * (L * 30.830854f
+                    - M * 29.832659f + S * 1.610474f));
+            final int igreen = (int) (255.f * (-L * 6.481468f
+                    + M * 17.715578f - S * 2.532642f));
+            final int iblue = (int) (255.f * (-L * 0.375690f
+                    - M * 1.199062f + S * 14.273846f));
+
+            // convert reduced linear rgb to gamma corrected rgb
+            final int red = linearToRed[Math.max(0, Math.min(255, ired))] & 0xff;
+            final int green = linearToGreen[Math.max(0, Math.min(255, igreen))] & 0xff;
+            final int blue = linearToBlue[Math.max(0, Math.min(255, iblue))] & 0xff;
+
+            return red << 16 | green << 8 | blue | 0xff000000;
         }
 
         @Override
-        public RenderingHints getRenderingHints() {
-            return null;
+        long filterRGB48(long rgb) {
+            final char[][] toLinear = curve.getLinearTables16();
+            final long r = toLinear[0][(int) (rgb >>> 32) & 0xffff];
+            final long g = toLinear[1][(int) (rgb >>> 16) & 0xffff];
+            final long b = toLinear[2][(int) rgb & 0xffff];
+
+            final long[] m = matrix16;
+            // the sign bit selects the matrix: 0 or 9
+            final int side = (int) ((inflection16[0] * r + inflection16[1] * g
+                    + inflection16[2] * b) >>> 63 ^ 1) * 9;
+            final long red = (m[side] * r + m[side + 1] * g + m[side + 2] * b)
+                    >> FRACTION_BITS_16;
+            final long green = (m[side + 3] * r + m[side + 4] * g + m[side + 5] * b)
+                    >> FRACTION_BITS_16;
+            final long blue = (m[side + 6] * r + m[side + 7] * g + m[side + 8] * b)
+                    >> FRACTION_BITS_16;
+
+            final char[][] toEncoded = curve.getEncodedTables16();
+            return (long) toEncoded[0][(int) Math.max(0, Math.min(65535, red))] << 32
+                    | (long) toEncoded[1][(int) Math.max(0, Math.min(65535, green))] << 16
+                    | toEncoded[2][(int) Math.max(0, Math.min(65535, blue))];
         }
     }
 
@@ -381,97 +989,92 @@ public class Simulator {
      * conversion to grayscale.
      * https://en.wikipedia.org/wiki/Grayscale#Colorimetric_(perceptual_luminance-preserving)_conversion_to_grayscale
      */
-    private class GrayscaleFilter implements BufferedImageOp {
+    static class GrayscaleFilter extends SimulationFilter {
 
-        @Override
-        public BufferedImage filter(BufferedImage src, BufferedImage dst) {
-            if (dst == null) {
-                dst = createCompatibleDestImage(src, null);
-            }
+        /**
+         * The contributions of the input channels to the luminance, scaled
+         * by 2^16.
+         */
+        final int[] luminanceFromRed = new int[256];
+        final int[] luminanceFromGreen = new int[256];
+        final int[] luminanceFromBlue = new int[256];
 
-            // make sure the two images have the same size, color space, etc.
-            // MISSING FIXME
-            DataBufferInt inBuffer = (DataBufferInt) src.getRaster().getDataBuffer();
-            DataBufferInt outBuffer = (DataBufferInt) dst.getRaster().getDataBuffer();
-            int[] inData = inBuffer.getData();
-            int[] outData = outBuffer.getData();
-
-            int prevIn = 0;
-            int prevOut = 0;
-            final int length = inData.length;
-            for (int i = 0; i < length; i++) {
-                final int in = inData[i];
-                if (in == prevIn) {
-                    outData[i] = prevOut;
-                } else {
-                    final int rgb = inData[i];
-
-                    final int r = (0xff0000 & rgb) >> 16;
-                    final int g = (0xff00 & rgb) >> 8;
-                    final int b = 0xff & rgb;
-
-                    // get linear rgb values in the range 0..2^15-1
-                    final int r_lin = SRGB_TO_LINRGB[r];
-                    final int g_lin = SRGB_TO_LINRGB[g];
-                    final int b_lin = SRGB_TO_LINRGB[b];
-
-                    // perceptual luminance-preserving conversion to grayscale
-                    // https://en.wikipedia.org/wiki/Grayscale#Colorimetric_(perceptual_luminance-preserving)_conversion_to_grayscale
-                    double luminance = 0.2126 * r_lin + 0.7152 * g_lin + 0.0722 * b_lin;
-                    int linRGB = ((int) (luminance)) >> 8; // divide by 2^8 to rescale
-                    
-                    // convert linear rgb to gamma corrected sRGB
-                    if (linRGB < 0) {
-                        linRGB = 0;
-                    } else if (linRGB > 255) {
-                        linRGB = 255;
-                    } else {
-                        linRGB = LINRGB_TO_SRGB[linRGB];
-                        linRGB = linRGB >= 0 ? linRGB : 256 + linRGB; // from unsigned to signed
-                    }
+        /**
+         * Linear values [0..255] to the red, green and blue values of the
+         * display.
+         */
+        final byte[] linearToRed;
+        final byte[] linearToGreen;
+        final byte[] linearToBlue;
 
-                    final int out = (int) (linRGB << 16 | linRGB << 8 | linRGB | 0xff000000);
+        /**
+         * The transfer curve of the display.
+         */
+        private final TransferCurve curve;
 
-                    outData[i] = out;
-                    prevIn = in;
-                    prevOut = out;
-                }
+        public GrayscaleFilter(TransferCurve curve) {
+            this.curve = curve;
+            linearToRed = curve.getEncodedTable(0);
+            linearToGreen = curve.getEncodedTable(1);
+            linearToBlue = curve.getEncodedTable(2);
+            // perceptual luminance-preserving conversion to grayscale
+            // https://en.wikipedia.org/wiki/Grayscale#Colorimetric_(perceptual_luminance-preserving)_conversion_to_grayscale
+            // The weights have four decimal places, so a luminance that is
+            // not a multiple of 2^8 is at least 1/10000 below the next
+            // multiple. Rounding each contribution up adds less than 3/2^16,
+            // so the truncated sum equals the exactly truncated luminance.
+            final short[] redToLinear = curve.getLinearTable(0);
+            final short[] greenToLinear = curve.getLinearTable(1);
+            final short[] blueToLinear = curve.getLinearTable(2);
+            for (int i = 0; i < 256; i++) {
+                luminanceFromRed[i] = (int) Math.ceil(0.2126 * redToLinear[i] * 65536);
+                luminanceFromGreen[i] = (int) Math.ceil(0.7152 * greenToLinear[i] * 65536);
+                luminanceFromBlue[i] = (int) Math.ceil(0.0722 * blueToLinear[i] * 65536);
             }
-
-            return dst;
         }
 
         @Override
-        public Rectangle2D getBounds2D(BufferedImage src) {
-            return src.getRaster().getBounds();
-        }
+        int filterRGB(int rgb) {
+            final int r = (0xff0000 & rgb) >> 16;
+            final int g = (0xff00 & rgb) >> 8;
+            final int b = 0xff & rgb;
 
-        @Override
-        public BufferedImage createCompatibleDestImage(BufferedImage src,
-                ColorModel destCM) {
-            if (destCM == null) {
-                destCM = src.getColorModel();
+            // divide by 2^16 and by 2^8 to rescale
+            int linRGB = (luminanceFromRed[r] + luminanceFromGreen[g]
+                    + luminanceFromBlue[b]) >>> 24;
+
+            // convert linear rgb to gamma corrected sRGB
+            if (linRGB > 255) {
+                return 0xffffffff;
             }
-            int width = src.getWidth();
-            int height = src.getHeight();
-            BufferedImage image = new BufferedImage(destCM,
-                    destCM.createCompatibleWritableRaster(width, height),
-                    destCM.isAlphaPremultiplied(), null);
-            return image;
+            final int red = linearToRed[linRGB] & 0xff; // from signed to unsigned
+            final int green = linearToGreen[linRGB] & 0xff;
+            final int blue = linearToBlue[linRGB] & 0xff;
+            return red << 16 | green << 8 | blue | 0xff000000;
         }
 
         @Override
-        public Point2D getPoint2D(Point2D srcPt, Point2D dstPt) {
-            if (dstPt == null) {
-                dstPt = new Point2D.Float();
+        BufferedImage createCompactDestImage(BufferedImage src) {
+            // the compact format requires identical red, green and blue values
+            if (!curve.isUniform() || !isCompactFormatSupported(src)) {
+                return null;
             }
-            dstPt.setLocation(srcPt.getX(), srcPt.getY());
-            return dstPt;
+            return CompactFormats.createGrayImage(src.getWidth(), src.getHeight());
         }
 
         @Override
-        public RenderingHints getRenderingHints() {
-            return null;
+        long filterRGB48(long rgb) {
+            final char[][] toLinear = curve.getLinearTables16();
+            final long r = toLinear[0][(int) (rgb >>> 32) & 0xffff];
+            final long g = toLinear[1][(int) (rgb >>> 16) & 0xffff];
+            final long b = toLinear[2][(int) rgb & 0xffff];
+
+            // the weights are scaled by 2^16. filterRGB() divides linear
+            // values [0..2^15-1] by 2^8, which maps them to [0..127] instead
+            // of [0..255], so the 16-bit luminance is halved as well.
+            final int lin = (int) Math.min(65535, (13933 * r + 46871 * g + 4732 * b) >> 17);
+            final char[][] toEncoded = curve.getEncodedTables16();
+            return (long) toEncoded[0][lin] << 32 | (long) toEncoded[1][lin] << 16 | toEncoded[2][lin];
         }
     }
 }
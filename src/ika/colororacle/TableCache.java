@@ -0,0 +1,259 @@
+package ika.colororacle;
+
+import com.muchsoft.util.Sys;
+import ika.colororacle.ColorOracle.Simulation;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A cache for lookup tables in files. Files are memory-mapped, such that all
+ * processes using a table share the same pages of the operating system's
+ * file cache, and a table does not have to be computed again when Color
+ * Oracle is started.
+ *
+ * Each file starts with a header identifying the simulation type, the
+ * algorithm version and the gamma tables. The header also contains a checksum
+ * of the table and a checksum of the header itself. Both checksums are
+ * verified when a file is loaded. Files with the wrong size, with a header
+ * that does not match or with a wrong checksum are logged, deleted and
+ * replaced by a new table. Files are written under a temporary name and
+ * renamed when complete, so a table is never partially written, but a file
+ * can still be damaged later.
+ *
+ * Files are stored in a ColorOracle folder in the local preferences directory
+ * shared by all users. If this directory is not writable, the user's
+ * preferences directory is used. The system property
+ * ika.colororacle.cacheDirectory overrides both.
+ */
+final class TableCache {
+
+    /**
+     * The name of the system property for the cache directory.
+     */
+    static final String DIRECTORY_PROPERTY = "ika.colororacle.cacheDirectory";
+
+    /**
+     * The name of the folder containing the cache files.
+     */
+    private static final String DIRECTORY_NAME = "ColorOracle";
+
+    /**
+     * Identifies Color Oracle table files. "COLT" in ASCII.
+     */
+    private static final int MAGIC = 0x434f4c54;
+
+    /**
+     * Version of the file layout.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Size of the file header in bytes. The table follows the header.
+     */
+    private static final int HEADER_SIZE = 64;
+
+    /**
+     * Position of the header checksum, which is the last field of the header.
+     */
+    private static final int HEADER_CHECKSUM_POSITION = HEADER_SIZE - 4;
+
+    /**
+     * Position of the table checksum in the header.
+     */
+    private static final int TABLE_CHECKSUM_POSITION = 36;
+
+    /**
+     * Fills a new table.
+     */
+    interface TableWriter {
+
+        void write(IntBuffer table);
+    }
+
+    private TableCache() {
+    }
+
+    /**
+     * Returns the directory for cache files, or null if there is no writable
+     * directory.
+     */
+    private static File getDirectory() {
+        String dir = System.getProperty(DIRECTORY_PROPERTY);
+        if (dir != null) {
+            return createDirectory(new File(dir));
+        }
+        File local = createDirectory(new File(Sys.getLocalPrefsDirectory(), DIRECTORY_NAME));
+        if (local != null) {
+            return local;
+        }
+        return createDirectory(new File(Sys.getPrefsDirectory(), DIRECTORY_NAME));
+    }
+
+    private static File createDirectory(File dir) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            return null;
+        }
+        return dir.canWrite() ? dir : null;
+    }
+
+    private static File getFile(File dir, Simulation type) {
+        return new File(dir, "lut-" + type.name() + ".bin");
+    }
+
+    /**
+     * Maps a table from a cache file into memory. The checksum of the table
+     * is verified, which reads the entire file, so this must not be called
+     * on the event dispatch thread.
+     *
+     * @param type The simulation type of the table.
+     * @param entries The number of entries in the table.
+     * @return The table or null if there is no valid cache file.
+     */
+    static IntBuffer load(Simulation type, int entries) {
+        File dir = getDirectory();
+        if (dir == null) {
+            return null;
+        }
+        File file = getFile(dir, type);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() != HEADER_SIZE + 4L * entries) {
+                return invalid(file, "has the wrong size");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            ByteBuffer expected = createHeader(type, entries, header.getInt(TABLE_CHECKSUM_POSITION));
+            if (!header.equals(expected)) {
+                // the header checksum is part of the expected header
+                return invalid(file, "is outdated or has a corrupt header");
+            }
+            // this reads the whole table, but load() is called by the
+            // background thread that computes the tables
+            MappedByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY,
+                    HEADER_SIZE, 4L * entries);
+            if (checksum(table) != header.getInt(TABLE_CHECKSUM_POSITION)) {
+                return invalid(file, "is corrupt");
+            }
+            return table.order(ByteOrder.nativeOrder()).asIntBuffer();
+        } catch (IOException ex) {
+            Logger.getLogger(TableCache.class.getName()).log(Level.WARNING,
+                    "Cannot read " + file, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Creates a new cache file and fills it with a table. The file is first
+     * written under a temporary name and then renamed, such that other
+     * processes never see a partially written file.
+     *
+     * @param type The simulation type of the table.
+     * @param entries The number of entries in the table.
+     * @param writer Fills the new table.
+     * @return The table mapped from the new file, or null if no file can be
+     * written.
+     */
+    static IntBuffer store(Simulation type, int entries, TableWriter writer) {
+        File dir = getDirectory();
+        if (dir == null) {
+            return null;
+        }
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(dir.toPath(), "lut-" + type.name(), ".tmp");
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(tmp,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE,
+                        0, HEADER_SIZE + 4L * entries);
+            }
+            buffer.position(HEADER_SIZE);
+            ByteBuffer table = buffer.slice();
+            writer.write(table.order(ByteOrder.nativeOrder()).asIntBuffer());
+            buffer.position(0);
+            buffer.put(createHeader(type, entries, checksum(table)));
+            buffer.force();
+
+            // temporary files are only readable by their owner
+            File file = getFile(dir, type);
+            tmp.toFile().setReadable(true, false);
+            Files.move(tmp, file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return table.asReadOnlyBuffer().order(ByteOrder.nativeOrder()).asIntBuffer();
+        } catch (IOException ex) {
+            Logger.getLogger(TableCache.class.getName()).log(Level.WARNING,
+                    "Cannot write lookup table to " + dir, ex);
+            if (tmp != null) {
+                tmp.toFile().deleteOnExit();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Creates the header of a cache file.
+     *
+     * @param type The simulation type.
+     * @param entries The number of entries in the table.
+     * @param tableChecksum The checksum of the table.
+     * @return The header, with the position at 0.
+     */
+    private static ByteBuffer createHeader(Simulation type, int entries, int tableChecksum) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(FORMAT_VERSION);
+        header.putInt(Simulator.ALGORITHM_VERSION);
+        header.putInt(type.name().hashCode());
+        header.putLong(Double.doubleToLongBits(TransferCurve.GAMMA));
+        header.putInt(TransferCurve.getDefault().getTablesChecksum());
+        header.putInt(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 1 : 0);
+        header.putInt(entries);
+        header.putInt(TABLE_CHECKSUM_POSITION, tableChecksum);
+
+        // the remaining bytes are reserved and zero, except for the checksum
+        // of the header at the end.
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, HEADER_CHECKSUM_POSITION);
+        header.putInt(HEADER_CHECKSUM_POSITION, (int) crc.getValue());
+        header.position(0);
+        return header;
+    }
+
+    /**
+     * Computes the CRC32 checksum of the remaining bytes of a buffer.
+     */
+    private static int checksum(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Deletes an invalid cache file.
+     *
+     * @param file The file.
+     * @param reason Why the file is invalid, for the log.
+     * @return null
+     */
+    private static IntBuffer invalid(File file, String reason) {
+        Logger.getLogger(TableCache.class.getName()).log(Level.INFO,
+                "Ignoring lookup table {0}, which {1}", new Object[]{file, reason});
+        // the file may be in use by another process and cannot be deleted on
+        // some systems, in which case it will be overwritten later.
+        file.delete();
+        return null;
+    }
+}
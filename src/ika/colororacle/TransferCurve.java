@@ -0,0 +1,509 @@
+package ika.colororacle;
+
+import java.awt.GraphicsConfiguration;
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+/**
+ * The transfer curves of a display, which convert the red, green and blue
+ * values of pixels to linear RGB and back. The filters convert with lookup
+ * tables, which are computed once for each curve, so that a conversion is a
+ * table lookup for any curve.
+ *
+ * The default curve is the approximation of a gamma of 2.2 that the filters
+ * have always used. The exact piecewise sRGB curve and the curves of an ICC
+ * display profile can be used instead, see Simulator.forType(). The curves of
+ * profiles are cached by a hash of the profile, so that each display profile,
+ * for example of several monitors, has its own tables, computed once.
+ */
+public final class TransferCurve {
+
+    /**
+     * Default screen gamma on Windows is 2.2.
+     */
+    static final double GAMMA = 2.2;
+
+    /**
+     * The approximation of a gamma of 2.2 with a small linear offset. The 8-bit
+     * tables are truncated instead of rounded, as they always were, so that
+     * lookup tables cached on disk remain valid.
+     */
+    private static final TransferCurve DEFAULT = new TransferCurve("gamma " + GAMMA,
+            new Curve() {
+
+                private final double gammaInv = 1. / GAMMA;
+
+                @Override
+                double toLinear(double v) {
+                    return 0.992052 * Math.pow(v, GAMMA) + 0.003974;
+                }
+
+                @Override
+                double toEncoded(double lin) {
+                    return Math.pow(lin, gammaInv);
+                }
+
+                @Override
+                int toLinear8(int i) {
+                    return (short) (toLinear(i / 255.) * 32767.);
+                }
+
+                @Override
+                int toEncoded8(int i) {
+                    return (byte) (255. * toEncoded(i / 255.)) & 0xff;
+                }
+            });
+
+    /**
+     * The piecewise sRGB curve of IEC 61966-2-1.
+     */
+    private static final TransferCurve SRGB = new TransferCurve("sRGB", new Curve() {
+
+        @Override
+        double toLinear(double v) {
+            return v <= 0.04045 ? v / 12.92 : Math.pow((v + 0.055) / 1.055, 2.4);
+        }
+
+        @Override
+        double toEncoded(double lin) {
+            return lin <= 0.0031308 ? 12.92 * lin : 1.055 * Math.pow(lin, 1. / 2.4) - 0.055;
+        }
+    });
+
+    /**
+     * The curves of ICC profiles, keyed by the size and CRC32 checksum of the
+     * profile data.
+     */
+    private static final ConcurrentMap<Long, TransferCurve> profileCurves
+            = new ConcurrentHashMap<Long, TransferCurve>();
+
+    /**
+     * The name of the curve for log messages.
+     */
+    private final String name;
+
+    /**
+     * The curves of the red, green and blue channels. Channels with the same
+     * curve share the same object and the same tables.
+     */
+    private final Curve[] curves;
+
+    /**
+     * Encoded 8-bit values [0..255] to linear values [0..32767] for each
+     * channel.
+     */
+    private final short[][] toLinear = new short[3][];
+
+    /**
+     * Linear values [0..255] to encoded 8-bit values [0..255] for each
+     * channel.
+     */
+    private final byte[][] toEncoded = new byte[3][];
+
+    /**
+     * The tables for 16-bit samples, or null until the first 16-bit sample is
+     * converted.
+     */
+    private volatile Tables16 tables16 = null;
+
+    private TransferCurve(String name, Curve curve) {
+        this(name, curve, curve, curve);
+    }
+
+    private TransferCurve(String name, Curve red, Curve green, Curve blue) {
+        this.name = name;
+        curves = new Curve[]{red, green, blue};
+        for (int c = 0; c < 3; c++) {
+            final int same = getFirstChannel(curves, c);
+            if (same < c) {
+                toLinear[c] = toLinear[same];
+                toEncoded[c] = toEncoded[same];
+                continue;
+            }
+            toLinear[c] = new short[256];
+            toEncoded[c] = new byte[256];
+            for (int i = 0; i < 256; i++) {
+                toLinear[c][i] = (short) curves[c].toLinear8(i);
+                toEncoded[c][i] = (byte) curves[c].toEncoded8(i);
+            }
+        }
+    }
+
+    /**
+     * Returns the curve that the filters use by default: a gamma of 2.2 with a
+     * small linear offset. This is the only curve for which lookup tables for
+     * all colors are computed and cached.
+     */
+    public static TransferCurve getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the exact piecewise sRGB curve.
+     */
+    public static TransferCurve sRGB() {
+        return SRGB;
+    }
+
+    /**
+     * Returns the curves of an ICC profile with red, green and blue tone
+     * reproduction curves, such as a matrix-based display profile. Curves with
+     * a gamma value, sampled curves and parametric curves are supported. The
+     * curves are cached, so the tables are computed once for each profile.
+     *
+     * @param profile The profile.
+     * @return The curves.
+     * @throws IllegalArgumentException If the profile is not an RGB profile
+     * or has no supported tone reproduction curves.
+     */
+    public static TransferCurve forProfile(ICC_Profile profile) {
+        final byte[] data = profile.getData();
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        final Long key = (long) data.length << 32 | crc.getValue();
+        TransferCurve curve = profileCurves.get(key);
+        if (curve == null) {
+            curve = createForProfile(profile, "profile " + Long.toHexString(key));
+            final TransferCurve previous = profileCurves.putIfAbsent(key, curve);
+            if (previous != null) {
+                curve = previous;
+            }
+        }
+        return curve;
+    }
+
+    /**
+     * Returns the curves of a screen: the curves of its ICC profile, or the
+     * sRGB curve if Java reports an sRGB screen.
+     *
+     * @param gc The configuration of the screen.
+     * @return The curves.
+     * @throws IllegalArgumentException If the color space of the screen has
+     * no supported curves, see forProfile().
+     */
+    public static TransferCurve forConfiguration(GraphicsConfiguration gc) {
+        final ColorSpace colorSpace = gc.getColorModel().getColorSpace();
+        if (colorSpace.isCS_sRGB()) {
+            return SRGB;
+        }
+        if (colorSpace instanceof ICC_ColorSpace) {
+            return forProfile(((ICC_ColorSpace) colorSpace).getProfile());
+        }
+        throw new IllegalArgumentException("The color space of the screen "
+                + "is not defined by an ICC profile");
+    }
+
+    /**
+     * Creates the curves of an ICC profile.
+     */
+    private static TransferCurve createForProfile(ICC_Profile profile, String name) {
+        if (profile.getColorSpaceType() != ColorSpace.TYPE_RGB) {
+            throw new IllegalArgumentException("Not an RGB profile");
+        }
+        final byte[] red = profile.getData(ICC_Profile.icSigRedTRCTag);
+        final byte[] green = profile.getData(ICC_Profile.icSigGreenTRCTag);
+        final byte[] blue = profile.getData(ICC_Profile.icSigBlueTRCTag);
+        if (red == null || green == null || blue == null) {
+            throw new IllegalArgumentException("The profile has no tone "
+                    + "reproduction curves");
+        }
+        final Curve redCurve = parseCurve(red);
+        final Curve greenCurve = Arrays.equals(green, red) ? redCurve : parseCurve(green);
+        final Curve blueCurve = Arrays.equals(blue, red) ? redCurve
+                : Arrays.equals(blue, green) ? greenCurve : parseCurve(blue);
+        return new TransferCurve(name, redCurve, greenCurve, blueCurve);
+    }
+
+    /**
+     * Parses the data of a tone reproduction curve tag: a curveType with a
+     * gamma value or sampled values, or a parametricCurveType.
+     */
+    private static Curve parseCurve(byte[] tag) {
+        final ByteBuffer data = ByteBuffer.wrap(tag);
+        try {
+            switch (data.getInt(0)) {
+                case 0x63757276: { // 'curv'
+                    final int n = data.getInt(8);
+                    if (n == 0) {
+                        return new Parametric(0, new double[]{1});
+                    }
+                    if (n == 1) {
+                        // u8Fixed8Number
+                        return new Parametric(0, new double[]{(data.getShort(12) & 0xffff) / 256.});
+                    }
+                    final double[] samples = new double[n];
+                    for (int i = 0; i < n; i++) {
+                        samples[i] = (data.getShort(12 + i * 2) & 0xffff) / 65535.;
+                    }
+                    return new Sampled(samples);
+                }
+                case 0x70617261: { // 'para'
+                    final int function = data.getShort(8) & 0xffff;
+                    if (function >= Parametric.PARAMETERS.length) {
+                        break;
+                    }
+                    // s15Fixed16Numbers
+                    final double[] p = new double[Parametric.PARAMETERS[function]];
+                    for (int i = 0; i < p.length; i++) {
+                        p[i] = data.getInt(12 + i * 4) / 65536.;
+                    }
+                    return new Parametric(function, p);
+                }
+            }
+        } catch (IndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Truncated tone reproduction curve", ex);
+        }
+        throw new IllegalArgumentException("Unsupported tone reproduction curve");
+    }
+
+    /**
+     * Returns true if the three channels have the same curve.
+     */
+    boolean isUniform() {
+        return curves[0] == curves[1] && curves[1] == curves[2];
+    }
+
+    /**
+     * Returns the table converting encoded 8-bit values [0..255] to linear
+     * values [0..32767]. The table is shared and must not be changed.
+     *
+     * @param channel 0 for red, 1 for green, 2 for blue.
+     */
+    short[] getLinearTable(int channel) {
+        return toLinear[channel];
+    }
+
+    /**
+     * Returns the table converting linear values [0..255] to encoded 8-bit
+     * values [0..255]. The table is shared and must not be changed.
+     *
+     * @param channel 0 for red, 1 for green, 2 for blue.
+     */
+    byte[] getEncodedTable(int channel) {
+        return toEncoded[channel];
+    }
+
+    /**
+     * Returns the tables converting encoded 16-bit values [0..65535] to
+     * linear values [0..65535] for red, green and blue. The tables are
+     * computed when first requested, are shared and must not be changed.
+     */
+    char[][] getLinearTables16() {
+        return getTables16().toLinear;
+    }
+
+    /**
+     * Returns the tables converting linear values [0..65535] to encoded
+     * 16-bit values [0..65535] for red, green and blue. The tables are
+     * computed when first requested, are shared and must not be changed.
+     */
+    char[][] getEncodedTables16() {
+        return getTables16().toEncoded;
+    }
+
+    private Tables16 getTables16() {
+        Tables16 tables = tables16;
+        if (tables == null) {
+            // several threads may do this at the same time, which is harmless
+            tables = new Tables16(curves);
+            tables16 = tables;
+        }
+        return tables;
+    }
+
+    /**
+     * Returns a CRC32 checksum of the 8-bit tables, which identifies the
+     * conversion used by the filters.
+     */
+    int getTablesChecksum() {
+        final CRC32 crc = new CRC32();
+        for (int c = 0; c < (isUniform() ? 1 : 3); c++) {
+            for (short lin : toLinear[c]) {
+                crc.update(lin >> 8);
+                crc.update(lin);
+            }
+            crc.update(toEncoded[c]);
+        }
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * The tables for 16-bit samples.
+     */
+    private static final class Tables16 {
+
+        final char[][] toLinear = new char[3][];
+        final char[][] toEncoded = new char[3][];
+
+        Tables16(Curve[] curves) {
+            for (int c = 0; c < 3; c++) {
+                final int same = getFirstChannel(curves, c);
+                if (same < c) {
+                    toLinear[c] = toLinear[same];
+                    toEncoded[c] = toEncoded[same];
+                    continue;
+                }
+                toLinear[c] = new char[65536];
+                toEncoded[c] = new char[65536];
+                for (int i = 0; i < 65536; i++) {
+                    final double lin = clamp(curves[c].toLinear(i / 65535.));
+                    toLinear[c][i] = (char) Math.round(lin * 65535.);
+                    final double v = clamp(curves[c].toEncoded(i / 65535.));
+                    toEncoded[c][i] = (char) Math.round(65535. * v);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the first channel with the same curve as a channel, so that
+     * channels with the same curve share their tables.
+     */
+    private static int getFirstChannel(Curve[] curves, int channel) {
+        int first = 0;
+        while (curves[first] != curves[channel]) {
+            first++;
+        }
+        return first;
+    }
+
+    private static double clamp(double v) {
+        return v > 0 ? Math.min(1, v) : 0;
+    }
+
+    /**
+     * The curve of a channel.
+     */
+    private abstract static class Curve {
+
+        /**
+         * Converts an encoded value [0..1] to a linear value [0..1].
+         */
+        abstract double toLinear(double v);
+
+        /**
+         * Converts a linear value [0..1] to an encoded value [0..1]. The
+         * inverse of toLinear() is found by bisection, which requires that
+         * toLinear() does not decrease.
+         */
+        double toEncoded(double lin) {
+            double lo = 0;
+            double hi = 1;
+            for (int i = 0; i < 48; i++) {
+                final double mid = (lo + hi) / 2;
+                if (toLinear(mid) < lin) {
+                    lo = mid;
+                } else {
+                    hi = mid;
+                }
+            }
+            return (lo + hi) / 2;
+        }
+
+        /**
+         * Converts an encoded 8-bit value [0..255] to a linear value
+         * [0..32767].
+         */
+        int toLinear8(int i) {
+            return (int) Math.round(clamp(toLinear(i / 255.)) * 32767.);
+        }
+
+        /**
+         * Converts a linear value [0..255] to an encoded 8-bit value
+         * [0..255].
+         */
+        int toEncoded8(int i) {
+            return (int) Math.round(clamp(toEncoded(i / 255.)) * 255.);
+        }
+    }
+
+    /**
+     * A parametric curve of an ICC profile, with the parameters g, a, b, c, d,
+     * e and f in this order.
+     */
+    private static final class Parametric extends Curve {
+
+        /**
+         * The number of parameters of each function type.
+         */
+        static final int[] PARAMETERS = {1, 3, 4, 5, 7};
+
+        private final double g, a, b, c, d, e, f;
+
+        Parametric(int function, double[] p) {
+            g = p[0];
+            switch (function) {
+                case 0:
+                    // Y = X^g
+                    a = 1;
+                    b = c = d = e = f = 0;
+                    break;
+                case 1:
+                case 2:
+                    // Y = (aX + b)^g + c for X >= -b/a, Y = c otherwise
+                    a = p[1];
+                    b = p[2];
+                    e = f = function == 2 ? p[3] : 0;
+                    c = 0;
+                    d = a == 0 ? 0 : -b / a;
+                    break;
+                case 3:
+                    // Y = (aX + b)^g for X >= d, Y = cX otherwise
+                    a = p[1];
+                    b = p[2];
+                    c = p[3];
+                    d = p[4];
+                    e = f = 0;
+                    break;
+                default:
+                    // Y = (aX + b)^g + e for X >= d, Y = cX + f otherwise
+                    a = p[1];
+                    b = p[2];
+                    c = p[3];
+                    d = p[4];
+                    e = p[5];
+                    f = p[6];
+                    break;
+            }
+        }
+
+        @Override
+        double toLinear(double v) {
+            if (v >= d) {
+                return Math.pow(Math.max(0, a * v + b), g) + e;
+            }
+            return c * v + f;
+        }
+    }
+
+    /**
+     * A curve of an ICC profile with evenly spaced samples, which are
+     * interpolated linearly.
+     */
+    private static final class Sampled extends Curve {
+
+        private final double[] samples;
+
+        Sampled(double[] samples) {
+            this.samples = samples;
+        }
+
+        @Override
+        double toLinear(double v) {
+            final double x = clamp(v) * (samples.length - 1);
+            final int i = Math.min((int) x, samples.length - 2);
+            return samples[i] + (samples[i + 1] - samples[i]) * (x - i);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package ika.colororacle;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Pixels with 16-bit RGB samples in interleaved shorts, as read from 16-bit
+ * TIFF and PNG files. The samples are converted with
+ * SimulationFilter.filterRGB48() directly in the data buffers, without
+ * reducing them to 8 bits.
+ */
+final class UShortRows {
+
+    private final short[] data;
+    private final int offset;
+    private final int scanlineStride;
+    private final int pixelStride;
+    private final int r, g, b, a;
+    private final int width;
+
+    private UShortRows(int width, short[] data, int offset, int scanlineStride,
+            int pixelStride, int[] bandOffsets) {
+        this.width = width;
+        this.data = data;
+        this.offset = offset;
+        this.scanlineStride = scanlineStride;
+        this.pixelStride = pixelStride;
+        r = bandOffsets[0];
+        g = bandOffsets[1];
+        b = bandOffsets[2];
+        a = bandOffsets.length > 3 ? bandOffsets[3] : -1;
+    }
+
+    /**
+     * Returns an object accessing the pixels of an image with 16-bit sRGB
+     * samples in a single bank of shorts, or null for other images. Images
+     * with premultiplied alpha are not supported.
+     */
+    static UShortRows create(BufferedImage image) {
+        final ColorModel cm = image.getColorModel();
+        final WritableRaster raster = image.getRaster();
+        final SampleModel sm = raster.getSampleModel();
+        final DataBuffer buffer = raster.getDataBuffer();
+        if (!(cm instanceof ComponentColorModel)
+                || !cm.getColorSpace().isCS_sRGB()
+                || cm.isAlphaPremultiplied()
+                || !(sm instanceof ComponentSampleModel)
+                || !(buffer instanceof DataBufferUShort)
+                || buffer.getNumBanks() != 1
+                || (sm.getNumBands() != 3 && sm.getNumBands() != 4)) {
+            return null;
+        }
+        final ComponentSampleModel csm = (ComponentSampleModel) sm;
+        for (int size : csm.getSampleSize()) {
+            if (size != 16) {
+                return null;
+            }
+        }
+        final int x0 = -raster.getSampleModelTranslateX();
+        final int y0 = -raster.getSampleModelTranslateY();
+        return new UShortRows(image.getWidth(),
+                ((DataBufferUShort) buffer).getData(),
+                buffer.getOffset() + y0 * csm.getScanlineStride()
+                + x0 * csm.getPixelStride(),
+                csm.getScanlineStride(), csm.getPixelStride(),
+                csm.getBandOffsets());
+    }
+
+    /**
+     * Filters a band of rows. Pixels with the same color as their left
+     * neighbour are not converted again. The alpha is copied, and fully
+     * transparent pixels are copied without being converted, unless the
+     * destination has no alpha.
+     *
+     * @param filter The filter converting the colors.
+     * @param dst The destination pixels, with the same size as these pixels.
+     * @param firstRow The first row to filter.
+     * @param endRow The row after the last row to filter.
+     */
+    void filter(SimulationFilter filter, UShortRows dst, int firstRow, int endRow) {
+        final short[] in = data;
+        final short[] out = dst.data;
+        long prevIn = -1;
+        long prevOut = 0;
+        for (int y = firstRow; y < endRow; y++) {
+            int p = offset + y * scanlineStride;
+            int q = dst.offset + y * dst.scanlineStride;
+            for (int x = 0; x < width; x++, p += pixelStride, q += dst.pixelStride) {
+                final short alpha = a < 0 ? (short) 0xffff : in[p + a];
+                long rgb = (long) (in[p + r] & 0xffff) << 32
+                        | (long) (in[p + g] & 0xffff) << 16
+                        | (in[p + b] & 0xffff);
+                if (alpha != 0 || dst.a < 0) {
+                    if (rgb != prevIn) {
+                        prevIn = rgb;
+                        prevOut = filter.filterRGB48(rgb);
+                    }
+                    rgb = prevOut;
+                }
+                out[q + dst.r] = (short) (rgb >>> 32);
+                out[q + dst.g] = (short) (rgb >>> 16);
+                out[q + dst.b] = (short) rgb;
+                if (dst.a >= 0) {
+                    out[q + dst.a] = alpha;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package ika.colororacle;
+
+import java.lang.reflect.Method;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replaces the arithmetic filters with filters using the Java Vector API, if
+ * the virtual machine supports it. The vector filters are in a separate
+ * source folder (src-vector), as they require Java 16 or newer and the
+ * jdk.incubator.vector module, which must be added when Color Oracle is
+ * started with --add-modules jdk.incubator.vector.
+ *
+ * Before a vector filter is used, it is compared to the scalar filter for
+ * gray values, ramps in each channel, the corners of the RGB cube and random
+ * colors. If any color differs, the scalar filter is used.
+ */
+final class VectorSupport {
+
+    /**
+     * The name of the system property for disabling the vector filters with
+     * false.
+     */
+    static final String ENABLED_PROPERTY = "ika.colororacle.vector";
+
+    /**
+     * The name of the class with the vector filters.
+     */
+    private static final String CLASS_NAME = "ika.colororacle.VectorFilters";
+
+    /**
+     * The number of random colors compared by the self-check.
+     */
+    private static final int RANDOM_COLORS = 1 << 16;
+
+    /**
+     * The factory method of VectorFilters, or null if the vector filters are
+     * not available.
+     */
+    private static Method factory = null;
+
+    /**
+     * True once the availability of the vector filters has been tested.
+     */
+    private static boolean initialized = false;
+
+    private VectorSupport() {
+    }
+
+    /**
+     * Returns true if vector filters can be used.
+     */
+    static synchronized boolean isAvailable() {
+        if (!initialized) {
+            initialized = true;
+            if (!Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "true"))) {
+                return false;
+            }
+            try {
+                Class<?> c = Class.forName(CLASS_NAME);
+                factory = c.getMethod("create", SimulationFilter.class);
+                Logger.getLogger(VectorSupport.class.getName()).log(Level.FINE,
+                        "Vector filters with {0} pixels per vector",
+                        c.getMethod("getVectorLength").invoke(null));
+            } catch (ClassNotFoundException | LinkageError ex) {
+                // not compiled, or the jdk.incubator.vector module is missing
+            } catch (Exception ex) {
+                Logger.getLogger(VectorSupport.class.getName()).log(Level.WARNING,
+                        "Cannot initialize vector filters", ex);
+                factory = null;
+            }
+        }
+        return factory != null;
+    }
+
+    /**
+     * Returns a vector filter equivalent to a scalar filter.
+     *
+     * @param filter The scalar filter.
+     * @return The vector filter, or the passed filter if vector filters are
+     * not available or the vector filter does not produce identical results.
+     */
+    static SimulationFilter vectorize(SimulationFilter filter) {
+        final SimulationFilter vectorFilter = createVectorFilter(filter);
+        if (vectorFilter == null) {
+            return filter;
+        }
+        if (!isEquivalent(filter, vectorFilter)) {
+            Logger.getLogger(VectorSupport.class.getName()).log(Level.WARNING,
+                    "Vector filter differs from {0}, using the scalar filter",
+                    filter.getClass().getSimpleName());
+            return filter;
+        }
+        return vectorFilter;
+    }
+
+    /**
+     * Creates the vector filter for a scalar filter without comparing the
+     * results of the two filters.
+     *
+     * @param filter The scalar filter.
+     * @return The vector filter, or null if vector filters are not available
+     * or there is no vector filter for the passed filter.
+     */
+    static SimulationFilter createVectorFilter(SimulationFilter filter) {
+        if (!isAvailable()) {
+            return null;
+        }
+        try {
+            return (SimulationFilter) factory.invoke(null, filter);
+        } catch (Exception ex) {
+            Logger.getLogger(VectorSupport.class.getName()).log(Level.WARNING,
+                    "Cannot create vector filter", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Tests whether two filters produce the same colors for gray values,
+     * ramps in each channel, the corners of the RGB cube and random colors.
+     */
+    static boolean isEquivalent(SimulationFilter expected, SimulationFilter filter) {
+        final int[] colors = new int[256 * 4 + 8 + RANDOM_COLORS];
+        int n = 0;
+        for (int c = 0; c < 256; c++) {
+            colors[n++] = c << 16 | c << 8 | c;
+            colors[n++] = c << 16;
+            colors[n++] = c << 8;
+            colors[n++] = c;
+        }
+        for (int corner = 0; corner < 8; corner++) {
+            colors[n++] = ((corner & 4) != 0 ? 0xff0000 : 0)
+                    | ((corner & 2) != 0 ? 0xff00 : 0)
+                    | ((corner & 1) != 0 ? 0xff : 0);
+        }
+        // a fixed seed, such that a failure can be reproduced. The alpha
+        // bits are set to verify that they are ignored.
+        Random random = new Random(0x436f6c6fL);
+        while (n < colors.length) {
+            colors[n++] = random.nextInt();
+        }
+
+        final int[] out = new int[colors.length];
+        filter.filter(colors, out, 0, colors.length);
+        for (int i = 0; i < colors.length; i++) {
+            if (out[i] != expected.filterRGB(colors[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,178 @@
+package ika.colororacle;
+
+import ika.colororacle.ColorOracle.Simulation;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares the vector filters of VectorFilters to the scalar filters they
+ * replace. The vector filters require Java 16 or newer, and the tests must be
+ * run with --add-modules jdk.incubator.vector, which build.xml adds for these
+ * JDKs. With an older JDK the tests are skipped.
+ */
+public class VectorFiltersTest {
+
+    /**
+     * The number of random colors for each filter. A fixed seed is used, such
+     * that a failure can be reproduced.
+     */
+    private static final int RANDOM_COLORS = 1 << 16;
+
+    private static final long SEED = 0x436f6c6fL;
+
+    /**
+     * Pixels are filtered in ranges of up to this many pixels, which is more
+     * than four times the length of the longest vectors.
+     */
+    private static final int MAX_RANGE = 67;
+
+    @Before
+    public void checkVectorSupport() {
+        final String version = System.getProperty("java.specification.version");
+        assumeTrue("The Vector API requires Java 16 or newer",
+                !version.startsWith("1.") && Integer.parseInt(version) >= 16);
+        assertTrue("Vector filters are not available, run the tests with "
+                + "--add-modules jdk.incubator.vector", VectorSupport.isAvailable());
+    }
+
+    /**
+     * Returns the scalar filters of all kinds that have a vector filter, for
+     * the default and the sRGB transfer curves.
+     */
+    private static List<SimulationFilter> createFilters() {
+        final List<SimulationFilter> filters = new ArrayList<SimulationFilter>();
+        for (TransferCurve curve : new TransferCurve[]{
+            TransferCurve.getDefault(), TransferCurve.sRGB()}) {
+            for (Simulation type : Simulation.values()) {
+                if (type != Simulation.normal) {
+                    filters.add(Simulator.createFilter(type, curve));
+                }
+            }
+            filters.add(Simulator.forBrettel(Simulation.deutan, curve).getFilter());
+            filters.add(Simulator.forBrettel(Simulation.protan, curve).getFilter());
+            for (Simulation type : new Simulation[]{
+                Simulation.deutan, Simulation.protan, Simulation.tritan}) {
+                filters.add(Simulator.forSeverity(type, 0.5, curve).getFilter());
+            }
+        }
+        return filters;
+    }
+
+    private static SimulationFilter vectorize(SimulationFilter filter) {
+        final SimulationFilter vectorFilter = VectorSupport.createVectorFilter(filter);
+        assertNotNull("No vector filter for " + name(filter), vectorFilter);
+        return vectorFilter;
+    }
+
+    private static String name(SimulationFilter filter) {
+        return filter.getClass().getSimpleName();
+    }
+
+    /**
+     * Filters all colors with the vector filter in a single range and
+     * compares the results to filterRGB() of the scalar filter.
+     */
+    private static void assertSameColors(SimulationFilter filter, int[] colors) {
+        final int[] out = new int[colors.length];
+        vectorize(filter).filter(colors, out, 0, colors.length);
+        for (int i = 0; i < colors.length; i++) {
+            assertEquals(name(filter) + " " + Integer.toHexString(colors[i]),
+                    Integer.toHexString(filter.filterRGB(colors[i])),
+                    Integer.toHexString(out[i]));
+        }
+    }
+
+    @Test
+    public void testRamps() {
+        final int[] colors = new int[4 * 256];
+        for (int c = 0; c < 256; c++) {
+            colors[4 * c] = 0xff000000 | c << 16 | c << 8 | c;
+            colors[4 * c + 1] = 0xff000000 | c << 16;
+            colors[4 * c + 2] = 0xff000000 | c << 8;
+            colors[4 * c + 3] = 0xff000000 | c;
+        }
+        for (SimulationFilter filter : createFilters()) {
+            assertSameColors(filter, colors);
+        }
+    }
+
+    @Test
+    public void testCubeCorners() {
+        final int[] colors = new int[8];
+        for (int corner = 0; corner < 8; corner++) {
+            colors[corner] = 0xff000000
+                    | ((corner & 4) != 0 ? 0xff0000 : 0)
+                    | ((corner & 2) != 0 ? 0xff00 : 0)
+                    | ((corner & 1) != 0 ? 0xff : 0);
+        }
+        for (SimulationFilter filter : createFilters()) {
+            assertSameColors(filter, colors);
+        }
+    }
+
+    /**
+     * The alpha bits of the source pixels must be ignored.
+     */
+    @Test
+    public void testAlpha() {
+        final int[] colors = new int[256 * 4];
+        final Random random = new Random(SEED);
+        for (int i = 0; i < colors.length; i++) {
+            final int alpha = i & 0xff;
+            colors[i] = alpha << 24 | (random.nextInt() & 0xffffff);
+        }
+        for (SimulationFilter filter : createFilters()) {
+            assertSameColors(filter, colors);
+        }
+    }
+
+    @Test
+    public void testRandomColors() {
+        for (SimulationFilter filter : createFilters()) {
+            final Random random = new Random(SEED);
+            final int[] colors = new int[RANDOM_COLORS];
+            for (int i = 0; i < colors.length; i++) {
+                colors[i] = random.nextInt();
+            }
+            assertSameColors(filter, colors);
+        }
+    }
+
+    /**
+     * Filters ranges with all lengths up to MAX_RANGE and all offsets in a
+     * vector, such that the vector loop ends with every possible number of
+     * remaining pixels. Pixels outside of the range must not be changed.
+     */
+    @Test
+    public void testRemainders() {
+        final Random random = new Random(SEED);
+        final int[] colors = new int[2 * MAX_RANGE];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = random.nextInt();
+        }
+        final int[] out = new int[colors.length];
+        final int[] expected = new int[colors.length];
+        for (SimulationFilter filter : createFilters()) {
+            final SimulationFilter vectorFilter = vectorize(filter);
+            for (int from = 0; from < MAX_RANGE; from++) {
+                for (int to = from; to <= from + MAX_RANGE; to++) {
+                    for (int i = 0; i < colors.length; i++) {
+                        out[i] = i;
+                        expected[i] = i >= from && i < to ? filter.filterRGB(colors[i]) : i;
+                    }
+                    vectorFilter.filter(colors, out, from, to);
+                    assertArrayEquals(name(filter) + " from " + from + " to " + to,
+                            expected, out);
+                }
+            }
+        }
+    }
+}